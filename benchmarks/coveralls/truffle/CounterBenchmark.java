@@ -0,0 +1,52 @@
+package coveralls.truffle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The cost of a single {@link Counter#inc()} on the host JIT, for a counter
+ * used by one thread and for one shared by several threads. This isolates
+ * the counter from the instrumentation overhead of
+ * {@link SLWorkloadBenchmark}.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CounterBenchmark {
+
+  @State(Scope.Thread)
+  public static class Owned {
+    final Counter counter = new Counter(0);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Shared {
+    final Counter counter = new Counter(0);
+  }
+
+  @Benchmark
+  public Counter uncontended(final Owned state) {
+    state.counter.inc();
+    return state.counter;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Counter contended(final Shared state) {
+    state.counter.inc();
+    return state.counter;
+  }
+}
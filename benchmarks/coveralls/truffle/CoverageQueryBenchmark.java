@@ -0,0 +1,88 @@
+package coveralls.truffle;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Source;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oracle.truffle.api.source.SourceSection;
+import com.oracle.truffle.sl.SLLanguage;
+
+
+/**
+ * The cost of reading the coverage as the program grows. The program has
+ * {@link #functions} functions of a few statements each, half of which are
+ * called.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CoverageQueryBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int functions;
+
+  private Context  context;
+  private Coverage coverage;
+
+  static String program(final int functions) {
+    StringBuilder sl = new StringBuilder();
+    for (int i = 0; i < functions; i += 1) {
+      sl.append("function f").append(i).append("(n) {\n")
+        .append("  a = n + 1;\n")
+        .append("  if (a > 5) {\n")
+        .append("    a = a * 2;\n")
+        .append("  } else {\n")
+        .append("    a = a - 1;\n")
+        .append("  }\n")
+        .append("  return a;\n")
+        .append("}\n\n");
+    }
+    sl.append("function main() {\n");
+    for (int i = 0; i < functions; i += 2) {
+      sl.append("  f").append(i).append("(").append(i).append(");\n");
+    }
+    sl.append("}\n");
+    return sl.toString();
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    context = SLWorkloadBenchmark.createContext(SLWorkloadBenchmark.Config.COUNT);
+    coverage = Coverage.find(context.getEngine());
+    context.eval(Source.create(SLLanguage.ID, program(functions)));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public Map<String, long[]> getCoverageMap() {
+    return coverage.getCoverageMap();
+  }
+
+  @Benchmark
+  public List<SourceSection> getCodeNotExecuted() {
+    return coverage.getCodeNotExecuted();
+  }
+}
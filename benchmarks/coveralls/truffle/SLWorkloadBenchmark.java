@@ -0,0 +1,150 @@
+package coveralls.truffle;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oracle.truffle.sl.SLLanguage;
+
+
+/**
+ * The cost of coverage for SimpleLanguage workloads. Each workload defines a
+ * {@code run()} function. {@link #warm} measures it after warm-up, when it
+ * is compiled, or interpreted with {@code -p compilation=false}, and
+ * {@link #cold} measures the first execution in a fresh context, i.e., in the
+ * interpreter, including parsing and instrumentation.
+ *
+ * <p>Compilation needs the optimizing runtime on a JDK with JVMCI and the
+ * Graal compiler, such as GraalVM. Elsewhere, the engine warns that it falls
+ * back to the interpreter, the warm results are not those of compiled code,
+ * and {@code compilation=false} fails because the option does not exist.
+ */
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SLWorkloadBenchmark {
+
+  /** The coverage options of a benchmark run. */
+  public enum Config {
+    NONE(),
+    COUNT("Mode", "COUNT"),
+    HIT("Mode", "HIT"),
+    SAMPLE("Mode", "SAMPLE"),
+    FUNCTION("Granularity", "FUNCTION"),
+    BRANCHES("Branches", "true"),
+    CALL_EDGES("CallEdges", "true");
+
+    private final String[] options;
+
+    Config(final String... options) {
+      this.options = options;
+    }
+
+    Context.Builder apply(final Context.Builder builder) {
+      for (int i = 0; i < options.length; i += 2) {
+        builder.option(Coverage.ID + "." + options[i], options[i + 1]);
+      }
+      return builder;
+    }
+  }
+
+  static Context createContext(final Config config) {
+    return createContext(config, true);
+  }
+
+  static Context createContext(final Config config, final boolean compilation) {
+    Context.Builder builder = Context.newBuilder(SLLanguage.ID).allowAllAccess(true);
+    if (!compilation) {
+      builder.option("engine.Compilation", "false");
+    }
+    return config.apply(builder).build();
+  }
+
+  static Value load(final Context context, final String workload) throws IOException {
+    String name = workload + ".sl";
+    Source source = Source.newBuilder(SLLanguage.ID, new InputStreamReader(
+        SLWorkloadBenchmark.class.getResourceAsStream(name)), name).build();
+    context.eval(source);
+    return context.getBindings(SLLanguage.ID).getMember("run");
+  }
+
+  @State(Scope.Benchmark)
+  public static class Warm {
+    @Param({"loop", "recursion", "objects"})
+    public String workload;
+
+    @Param
+    public Config config;
+
+    /** Interpreter runs are opt-in with {@code -p compilation=false}. */
+    @Param({"true"})
+    public boolean compilation;
+
+    Context context;
+    Value   run;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      context = createContext(config, compilation);
+      run = load(context, workload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      context.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cold {
+    @Param({"loop", "recursion", "objects"})
+    public String workload;
+
+    @Param
+    public Config config;
+
+    Context context;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+      context = createContext(config);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      context.close();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 5, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public Value warm(final Warm state) {
+    return state.run.execute();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 3)
+  @Measurement(iterations = 20)
+  public Value cold(final Cold state) throws IOException {
+    return load(state.context, state.workload).execute();
+  }
+}
@@ -0,0 +1,221 @@
+package coveralls.truffle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+
+import com.oracle.truffle.sl.SLLanguage;
+
+
+/**
+ * Runs generated SimpleLanguage programs of growing size with statement
+ * coverage, and fails if the cost per statement exceeds a budget. Run with
+ * {@code ant soak}, which needs no network access once the libraries are
+ * downloaded.
+ *
+ * <p>Each program of {@code n} statements is run once without and once with
+ * coverage. The heap and first-run time of the instrument are the
+ * differences between the two runs, measured while the context is alive.
+ * Dispose time includes writing the gcov file. Both configurations are run
+ * once before they are measured, so that neither pays alone for loading and
+ * compiling the classes of the JVM, Truffle, and SimpleLanguage.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ * <li>{@code soak.statements}: comma-separated program sizes</li>
+ * <li>{@code soak.files}: number of files per program</li>
+ * <li>{@code soak.maxHeapPerStatement}: bytes</li>
+ * <li>{@code soak.maxInstrumentationPerStatement}: nanoseconds</li>
+ * <li>{@code soak.maxDisposePerStatement}: nanoseconds</li>
+ * <li>{@code soak.maxOutputPerStatement}: bytes</li>
+ * </ul>
+ */
+public final class ScalabilityHarness {
+
+  /** Statements per generated function, so that functions stay small. */
+  private static final int STATEMENTS_PER_FUNCTION = 100;
+
+  private ScalabilityHarness() { }
+
+  static final class Result {
+    final int  statements;
+    long heapBytes;
+    long instrumentationNanos;
+    long disposeNanos;
+    long outputBytes;
+
+    Result(final int statements) {
+      this.statements = statements;
+    }
+
+    @Override
+    public String toString() {
+      return "statements=" + statements
+          + " heapBytes=" + heapBytes
+          + " instrumentationMs=" + instrumentationNanos / 1_000_000
+          + " disposeMs=" + disposeNanos / 1_000_000
+          + " outputBytes=" + outputBytes;
+    }
+  }
+
+  /**
+   * Write a program of about {@code statements} statements in {@code files}
+   * files to {@code dir}. File {@code k} defines {@code run<k>()}, which
+   * calls all of its functions.
+   */
+  static List<Path> generate(final Path dir, final int statements, final int files)
+      throws IOException {
+    List<Path> paths = new ArrayList<>();
+    int perFile = Math.max(1, statements / files);
+    for (int k = 0; k < files; k += 1) {
+      Path file = dir.resolve("file" + k + ".sl");
+      int functions = (perFile + STATEMENTS_PER_FUNCTION - 1) / STATEMENTS_PER_FUNCTION;
+      try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+        int remaining = perFile;
+        for (int f = 0; f < functions; f += 1) {
+          out.write("function f" + k + "_" + f + "() {\n");
+          out.write("  a = 0;\n");
+          for (int s = 1; s < STATEMENTS_PER_FUNCTION && s < remaining; s += 1) {
+            out.write("  a = a + " + s + ";\n");
+          }
+          out.write("}\n\n");
+          remaining -= STATEMENTS_PER_FUNCTION;
+        }
+
+        out.write("function run" + k + "() {\n");
+        for (int f = 0; f < functions; f += 1) {
+          out.write("  f" + k + "_" + f + "();\n");
+        }
+        out.write("}\n");
+      }
+      paths.add(file);
+    }
+    return paths;
+  }
+
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i += 1) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  /** Load and run all files, and return the time it took. */
+  private static long runProgram(final Context context, final List<Path> files)
+      throws IOException {
+    long start = System.nanoTime();
+    for (Path file : files) {
+      context.eval(Source.newBuilder(SLLanguage.ID, file.toFile()).build());
+    }
+    Value bindings = context.getBindings(SLLanguage.ID);
+    for (int k = 0; k < files.size(); k += 1) {
+      bindings.getMember("run" + k).execute();
+    }
+    return System.nanoTime() - start;
+  }
+
+  /** Create a context, with coverage written to {@code output} if it is not null. */
+  private static Context createContext(final Path output) throws IOException {
+    if (output == null) {
+      return Context.newBuilder(SLLanguage.ID).allowAllAccess(true).build();
+    }
+    Context context = Context.newBuilder(SLLanguage.ID).allowAllAccess(true)
+        .option(Coverage.ID + ".Mode", CountingMode.COUNT.name()).build();
+    Coverage.find(context.getEngine()).setOutputFile(output.toString());
+    return context;
+  }
+
+  static Result measure(final int statements, final int numFiles) throws IOException {
+    Path dir = Files.createTempDirectory("soak");
+    List<Path> files = generate(dir, statements, numFiles);
+    Path output = dir.resolve("coverage.gcov");
+    Result result = new Result(statements);
+
+    Path warmUpOutput = dir.resolve("warm-up.gcov");
+    for (Path out : new Path[] {null, warmUpOutput}) {
+      Context warmUp = createContext(out);
+      runProgram(warmUp, files);
+      warmUp.close();
+    }
+    Files.delete(warmUpOutput);
+
+    long before = usedHeap();
+    Context plain = createContext(null);
+    long plainTime = runProgram(plain, files);
+    long plainHeap = usedHeap() - before;
+    plain.close();
+
+    before = usedHeap();
+    Context covered = createContext(output);
+    long coveredTime = runProgram(covered, files);
+    result.heapBytes = usedHeap() - before - plainHeap;
+    result.instrumentationNanos = coveredTime - plainTime;
+
+    long start = System.nanoTime();
+    covered.close();
+    result.disposeNanos = System.nanoTime() - start;
+    result.outputBytes = Files.size(output);
+
+    for (Path file : files) {
+      Files.delete(file);
+    }
+    Files.delete(output);
+    Files.delete(dir);
+    return result;
+  }
+
+  /** Return the budgets the result exceeds. */
+  static List<String> checkBudgets(final Result r) {
+    List<String> failures = new ArrayList<>();
+    check(failures, "heap bytes", r.heapBytes, r.statements,
+        Long.getLong("soak.maxHeapPerStatement", 1024));
+    check(failures, "instrumentation ns", r.instrumentationNanos, r.statements,
+        Long.getLong("soak.maxInstrumentationPerStatement", 100_000));
+    check(failures, "dispose ns", r.disposeNanos, r.statements,
+        Long.getLong("soak.maxDisposePerStatement", 20_000));
+    check(failures, "output bytes", r.outputBytes, r.statements,
+        Long.getLong("soak.maxOutputPerStatement", 32));
+    return failures;
+  }
+
+  private static void check(final List<String> failures, final String what,
+      final long value, final int statements, final long budgetPerStatement) {
+    if (value > budgetPerStatement * statements) {
+      failures.add(statements + " statements: " + what + " " + value
+          + " exceed the budget of " + budgetPerStatement + " per statement");
+    }
+  }
+
+  public static void main(final String[] args) throws IOException {
+    int files = Integer.getInteger("soak.files", 100);
+    List<String> failures = new ArrayList<>();
+
+    for (String size : System.getProperty("soak.statements", "1000,10000,100000").split(",")) {
+      Result result = measure(Integer.parseInt(size.trim()), files);
+      // Checkstyle: stop
+      System.out.println(result);
+      // Checkstyle: resume
+      failures.addAll(checkBudgets(result));
+    }
+
+    if (!failures.isEmpty()) {
+      // Checkstyle: stop
+      for (String f : failures) {
+        System.err.println(f);
+      }
+      // Checkstyle: resume
+      System.exit(1);
+    }
+  }
+}
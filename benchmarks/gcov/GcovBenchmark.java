@@ -0,0 +1,79 @@
+package gcov;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput of reading and writing large synthetic gcov files, with
+ * {@link #files} files of {@link #lines} lines each. About a third of the
+ * lines have no code, and counts span several orders of magnitude.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GcovBenchmark {
+
+  @Param({"100", "1000"})
+  public int files;
+
+  @Param({"1000"})
+  public int lines;
+
+  private Map<String, long[]> coverage;
+  private byte[]              gcov;
+
+  static Map<String, long[]> generate(final int files, final int lines) {
+    Random random = new Random(42);
+    Map<String, long[]> coverage = new HashMap<>();
+    for (int f = 0; f < files; f += 1) {
+      long[] counts = new long[lines];
+      for (int l = 0; l < lines; l += 1) {
+        if (random.nextInt(3) == 0) {
+          counts[l] = Gcov.NO_CODE;
+        } else {
+          counts[l] = random.nextBoolean() ? 0 : (long) Math.pow(10, random.nextInt(7));
+        }
+      }
+      coverage.put("src/module" + (f % 10) + "/File" + f + ".sl", counts);
+    }
+    return coverage;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    coverage = generate(files, lines);
+    gcov = Gcov.toString(coverage).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Benchmark
+  public String write() {
+    return Gcov.toString(coverage);
+  }
+
+  @Benchmark
+  public Map<String, long[]> load() throws IOException {
+    return Gcov.load(new ByteArrayInputStream(gcov));
+  }
+}
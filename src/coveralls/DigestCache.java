@@ -0,0 +1,163 @@
+package coveralls;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MD5 digests of source files, as required by Coveralls, cached by
+ * path, size, and modification time. The cache can be kept on disk between
+ * runs, so that unchanged files are not read again. All methods may be
+ * called concurrently.
+ *
+ * <p>The file has one entry per line: size, modification time in
+ * milliseconds, digest, and path, separated by tabs. Only the entries used
+ * since the cache was loaded are saved, so that deleted files drop out.
+ */
+public final class DigestCache {
+
+  /** Files larger than this are memory-mapped instead of read. */
+  static final int MAP_THRESHOLD = 1 << 20;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final class Entry {
+    final long   size;
+    final long   modified;
+    final String digest;
+
+    Entry(final long size, final long modified, final String digest) {
+      this.size     = size;
+      this.modified = modified;
+      this.digest   = digest;
+    }
+  }
+
+  private final Path file;
+
+  private final Map<String, Entry> loaded = new ConcurrentHashMap<>();
+  private final Map<String, Entry> used   = new ConcurrentHashMap<>();
+
+  /** A cache that is not kept on disk. */
+  public DigestCache() {
+    this.file = null;
+  }
+
+  /**
+   * Load the cache from {@code file}. A missing or unreadable file gives an
+   * empty cache.
+   */
+  public DigestCache(final Path file) {
+    this.file = file;
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] f = line.split("\t", 4);
+        if (f.length == 4) {
+          loaded.put(f[3], new Entry(Long.parseLong(f[0]), Long.parseLong(f[1]), f[2]));
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // first run
+    } catch (IOException | RuntimeException e) {
+      // a damaged cache only costs time
+      loaded.clear();
+    }
+  }
+
+  /** Return the hex MD5 digest of {@code source}. */
+  public String getDigest(final Path source) throws IOException {
+    String key = source.toAbsolutePath().normalize().toString();
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+    long size     = attrs.size();
+    long modified = attrs.lastModifiedTime().toMillis();
+
+    Entry e = loaded.get(key);
+    if (e == null || e.size != size || e.modified != modified) {
+      e = new Entry(size, modified, md5(source));
+    }
+    used.put(key, e);
+    return e.digest;
+  }
+
+  /** Write the entries used so far to the cache file, if there is one. */
+  public void save() throws IOException {
+    if (file == null) {
+      return;
+    }
+
+    Path target = file.toAbsolutePath();
+    Path tmp = Files.createTempFile(target.getParent(),
+        target.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, Entry> e : used.entrySet()) {
+          Entry v = e.getValue();
+          writer.write(v.size + "\t" + v.modified + "\t" + v.digest + "\t" + e.getKey());
+          writer.newLine();
+        }
+      }
+      try {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+  static String md5(final Path source) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+
+    try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > MAP_THRESHOLD) {
+        for (long pos = 0; pos < size; pos += Integer.MAX_VALUE) {
+          md.update(channel.map(FileChannel.MapMode.READ_ONLY, pos,
+              Math.min(Integer.MAX_VALUE, size - pos)));
+        }
+      } else {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (channel.read(buffer) != -1) {
+          buffer.flip();
+          md.update(buffer);
+          buffer.clear();
+        }
+      }
+    }
+    return toHex(md.digest());
+  }
+
+  private static String toHex(final byte[] bytes) {
+    char[] hex = new char[2 * bytes.length];
+    for (int i = 0; i < bytes.length; i += 1) {
+      hex[2 * i]     = HEX[(bytes[i] >> 4) & 0xF];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+}
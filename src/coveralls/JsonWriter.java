@@ -0,0 +1,138 @@
+package coveralls;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes JSON directly to a {@link Writer}, so that large documents do not
+ * need to be built in memory. The caller is responsible for the nesting to
+ * be well-formed; the writer only inserts separators.
+ */
+final class JsonWriter {
+  private final Writer out;
+
+  /** Whether the value at each nesting level is the first one. */
+  private boolean[] first = new boolean[8];
+  private int       depth;
+
+  /** Whether the next value follows a name. */
+  private boolean afterName;
+
+  JsonWriter(final Writer out) {
+    this.out = out;
+  }
+
+  JsonWriter beginObject() throws IOException {
+    return open('{');
+  }
+
+  JsonWriter endObject() throws IOException {
+    return close('}');
+  }
+
+  JsonWriter beginArray() throws IOException {
+    return open('[');
+  }
+
+  JsonWriter endArray() throws IOException {
+    return close(']');
+  }
+
+  JsonWriter name(final String name) throws IOException {
+    separate();
+    string(name);
+    out.write(':');
+    afterName = true;
+    return this;
+  }
+
+  JsonWriter value(final String value) throws IOException {
+    separate();
+    if (value == null) {
+      out.write("null");
+    } else {
+      string(value);
+    }
+    return this;
+  }
+
+  JsonWriter value(final long value) throws IOException {
+    separate();
+    out.write(Long.toString(value));
+    return this;
+  }
+
+  JsonWriter value(final boolean value) throws IOException {
+    separate();
+    out.write(value ? "true" : "false");
+    return this;
+  }
+
+  JsonWriter nullValue() throws IOException {
+    separate();
+    out.write("null");
+    return this;
+  }
+
+  private JsonWriter open(final char c) throws IOException {
+    separate();
+    out.write(c);
+    if (depth == first.length) {
+      first = Arrays.copyOf(first, 2 * depth);
+    }
+    first[depth] = true;
+    depth += 1;
+    return this;
+  }
+
+  private JsonWriter close(final char c) throws IOException {
+    depth -= 1;
+    out.write(c);
+    return this;
+  }
+
+  private void separate() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (depth > 0) {
+      if (!first[depth - 1]) {
+        out.write(',');
+      }
+      first[depth - 1] = false;
+    }
+  }
+
+  private void string(final String s) throws IOException {
+    out.write('"');
+    for (int i = 0; i < s.length(); i += 1) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          out.write("\\\"");
+          break;
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            out.write(String.format("\\u%04x", (int) c));
+          } else {
+            out.write(c);
+          }
+      }
+    }
+    out.write('"');
+  }
+}
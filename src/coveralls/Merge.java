@@ -0,0 +1,155 @@
+package coveralls;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import gcov.BranchRecord;
+import gcov.CoverageFormat;
+import gcov.FunctionRecord;
+import gcov.MergeMode;
+
+/**
+ * Merges the coverage files of several processes into one file. Files are
+ * loaded in parallel, and the results are combined pairwise in a fork-join
+ * reduction. Function and branch records are merged with the same mode as
+ * the line counts. Input and output formats are determined by the file
+ * extension, see {@link CoverageFormat}.
+ */
+public final class Merge {
+
+  private Merge() { }
+
+  /** Line, function, and branch coverage per file. */
+  public static final class Result {
+    public final Map<String, long[]> lines;
+    public final Map<String, List<FunctionRecord>> functions;
+    public final Map<String, List<BranchRecord>> branches;
+
+    Result(final Map<String, long[]> lines,
+        final Map<String, List<FunctionRecord>> functions,
+        final Map<String, List<BranchRecord>> branches) {
+      this.lines     = lines;
+      this.functions = functions;
+      this.branches  = branches;
+    }
+  }
+
+  /**
+   * Load and merge the line counts of the given files in parallel. Failures
+   * to load a file are reported as {@link UncheckedIOException}.
+   */
+  public static Map<String, long[]> merge(final Path[] files, final MergeMode mode) {
+    return mergeAll(files, mode).lines;
+  }
+
+  /**
+   * Load and merge the line counts, function records, and branch records of
+   * the given files in parallel. Failures to load a file are reported as
+   * {@link UncheckedIOException}.
+   */
+  public static Result mergeAll(final Path[] files, final MergeMode mode) {
+    if (files.length == 0) {
+      throw new IllegalArgumentException("No coverage files to merge");
+    }
+    return ForkJoinPool.commonPool().invoke(new MergeTask(files, 0, files.length, mode));
+  }
+
+  private static final class MergeTask extends RecursiveTask<Result> {
+    private static final long serialVersionUID = 3513532283537434620L;
+
+    private final Path[]    files;
+    private final int       from;
+    private final int       to;
+    private final MergeMode mode;
+
+    MergeTask(final Path[] files, final int from, final int to, final MergeMode mode) {
+      this.files = files;
+      this.from  = from;
+      this.to    = to;
+      this.mode  = mode;
+    }
+
+    @Override
+    protected Result compute() {
+      if (to - from == 1) {
+        Path file = files[from];
+        try {
+          CoverageFormat format = CoverageFormat.forPath(file);
+          Map<String, long[]> lines = format.load(file);
+          lines.replaceAll((path, counts) -> mode.normalize(counts));
+
+          // merging into empty maps normalizes the records for the mode
+          Map<String, List<FunctionRecord>> functions = new HashMap<>();
+          mode.mergeFunctions(functions, format.loadFunctions(file));
+          Map<String, List<BranchRecord>> branches = new HashMap<>();
+          mode.mergeBranches(branches, format.loadBranches(file));
+          return new Result(lines, functions, branches);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Failed to load " + file, e);
+        }
+      }
+
+      int middle = (from + to) >>> 1;
+      MergeTask left = new MergeTask(files, from, middle, mode);
+      left.fork();
+      Result right = new MergeTask(files, middle, to, mode).compute();
+      Result result = left.join();
+
+      if (result.lines.size() < right.lines.size()) {
+        Result tmp = result;
+        result = right;
+        right = tmp;
+      }
+      mode.merge(result.lines, right.lines);
+      mode.mergeFunctions(result.functions, right.functions);
+      mode.mergeBranches(result.branches, right.branches);
+      return result;
+    }
+  }
+
+  public static void main(final String[] args) throws IOException {
+    int first = 0;
+    MergeMode mode = MergeMode.SUM;
+    if (args.length > 0 && args[0].startsWith("--")) {
+      mode = MergeMode.valueOf(args[0].substring(2).toUpperCase());
+      first = 1;
+    }
+
+    if (args.length - first < 2) {
+      // Checkstyle: stop
+      System.out.println("Usage: java coveralls.Merge [--sum|--max|--hit] outFile inFile...");
+      // Checkstyle: resume
+      return;
+    }
+
+    Path out = Paths.get(args[first]);
+    Path[] in = new Path[args.length - first - 1];
+    for (int i = 0; i < in.length; i += 1) {
+      in[i] = Paths.get(args[first + 1 + i]);
+    }
+
+    Result merged;
+    try {
+      merged = mergeAll(in, mode);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    CoverageFormat format = CoverageFormat.forPath(out);
+    if (format == CoverageFormat.BINARY
+        && (!merged.functions.isEmpty() || !merged.branches.isEmpty())) {
+      // Checkstyle: stop
+      System.err.println("Warning: " + out + " records line counts only, "
+          + "function and branch records are dropped");
+      // Checkstyle: resume
+    }
+    format.write(merged.lines, merged.functions, merged.branches, out,
+        mode == MergeMode.HIT);
+  }
+}
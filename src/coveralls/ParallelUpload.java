@@ -0,0 +1,158 @@
+package coveralls;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Uploads the jobs of a Coveralls parallel build from a spool directory, and
+ * then marks the build as done. Jobs are sent concurrently, and failed
+ * requests are retried with exponential backoff. Each job file is deleted
+ * once it was accepted, so that an upload that failed can be resumed later
+ * from what is left in the directory, see {@link Report#spoolJobs}.
+ */
+final class ParallelUpload {
+
+  static final String JOB_PREFIX = "job-";
+  static final String JOB_SUFFIX = ".json";
+  static final String DONE_FILE  = "done.json";
+
+  static final int  DEFAULT_CONCURRENCY     = 4;
+  static final int  DEFAULT_MAX_ATTEMPTS    = 5;
+  static final long DEFAULT_INITIAL_BACKOFF = 1000;
+
+  /** Backoff is doubled after each attempt, up to this many milliseconds. */
+  private static final long MAX_BACKOFF = 60_000;
+
+  private final Uploader jobs;
+  private final Uploader done;
+  private final int      concurrency;
+  private final int      maxAttempts;
+  private final long     initialBackoff;
+
+  /**
+   * @param jobs uploads to the jobs endpoint
+   * @param done posts to the webhook that completes the parallel build
+   * @param initialBackoff milliseconds to wait before the first retry
+   */
+  ParallelUpload(final Uploader jobs, final Uploader done, final int concurrency,
+      final int maxAttempts, final long initialBackoff) {
+    this.jobs           = jobs;
+    this.done           = done;
+    this.concurrency    = concurrency;
+    this.maxAttempts    = maxAttempts;
+    this.initialBackoff = initialBackoff;
+  }
+
+  /**
+   * Upload the jobs in {@code spool}, and if all succeeded, complete the
+   * build. Return whether everything was sent, i.e., the spool is empty.
+   */
+  boolean run(final Path spool) throws IOException, InterruptedException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> dir = Files.newDirectoryStream(spool,
+        JOB_PREFIX + "*" + JOB_SUFFIX)) {
+      dir.forEach(files::add);
+    }
+    Collections.sort(files);
+
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    boolean allSent = true;
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (Path file : files) {
+        results.add(pool.submit(() -> sendJob(file)));
+      }
+      for (Future<Boolean> r : results) {
+        try {
+          allSent &= r.get();
+        } catch (ExecutionException e) {
+          allSent = false;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    Path doneFile = spool.resolve(DONE_FILE);
+    if (!allSent || !Files.exists(doneFile)) {
+      return allSent;
+    }
+    String payload = new String(Files.readAllBytes(doneFile), StandardCharsets.UTF_8);
+    if (withRetries("build completion", () -> done.postJson(payload))) {
+      Files.delete(doneFile);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean sendJob(final Path file) throws InterruptedException, IOException {
+    boolean sent = withRetries(file.getFileName().toString(), () -> {
+      try {
+        return jobs.send("json_file", "application/json", out -> {
+          try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            in.transferTo(out);
+          }
+        });
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    });
+    if (sent) {
+      Files.delete(file);
+    }
+    return sent;
+  }
+
+  /** Send the request until it succeeds, or fails permanently. */
+  private boolean withRetries(final String what,
+      final Supplier<CompletableFuture<String>> request) throws InterruptedException {
+    long backoff = initialBackoff;
+    for (int attempt = 1; attempt <= maxAttempts; attempt += 1) {
+      try {
+        request.get().join();
+        return true;
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        // Checkstyle: stop
+        System.err.println("Uploading " + what + " failed (attempt " + attempt + " of "
+            + maxAttempts + "): " + cause);
+        // Checkstyle: resume
+        if (!isTransient(cause)) {
+          return false;
+        }
+      }
+
+      if (attempt < maxAttempts) {
+        Thread.sleep(backoff);
+        backoff = Math.min(2 * backoff, MAX_BACKOFF);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Server errors, rate limiting, time outs, and connection problems may go
+   * away, other client errors do not.
+   */
+  private static boolean isTransient(final Throwable cause) {
+    if (cause instanceof Uploader.StatusException) {
+      int status = ((Uploader.StatusException) cause).status;
+      return status >= 500 || status == 429 || status == 408;
+    }
+    return cause instanceof IOException;
+  }
+}
@@ -1,143 +1,368 @@
 package coveralls;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
-import com.oracle.truffle.api.utilities.JSONHelper;
-import com.oracle.truffle.api.utilities.JSONHelper.JSONArrayBuilder;
-import com.oracle.truffle.api.utilities.JSONHelper.JSONObjectBuilder;
-
+import gcov.BranchRecord;
+import gcov.CoverageFormat;
+import gcov.FunctionRecord;
 import gcov.Gcov;
 
 public final class Report {
 
+  static final String COVERALLS_WEBHOOK = "https://coveralls.io/webhook";
+
+  /** Time out for each request of a parallel upload, which is retried. */
+  private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+
   private final String  repoToken;
   private final String  serviceName;
   private final boolean includeTravisData;
 
-  private Report(final String repoToken) {
+  private final DigestCache digestCache;
+
+  Report(final String repoToken, final DigestCache digestCache) {
     includeTravisData = true;
     serviceName       = "travis-ci";
     this.repoToken    = repoToken;
+    this.digestCache  = digestCache;
   }
 
-  public String generateCoverageJson(final Map<String, Long[]> coverageMap) throws FileNotFoundException {
-    JSONObjectBuilder coverageRequest = JSONHelper.object();
-
-    coverageRequest.add("repo_token",   repoToken);
-    coverageRequest.add("service_name", serviceName);
+  public String generateCoverageJson(final Map<String, long[]> coverageMap) throws FileNotFoundException {
+    return generateCoverageJson(coverageMap, Collections.emptyMap(), Collections.emptyMap());
+  }
 
-    if (includeTravisData) {
-      Map<String, String> env = System.getenv();
-      coverageRequest.add("service_job_id", env.get("TRAVIS_JOB_ID"));
-      coverageRequest.add("service_pull_request", env.get("TRAVIS_PULL_REQUEST"));
+  /**
+   * Generate the JSON for Coveralls, see
+   * {@link #writeCoverageJson(Map, Map, Map, Writer)}.
+   */
+  public String generateCoverageJson(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches) throws FileNotFoundException {
+    StringWriter json = new StringWriter();
+    try {
+      writeCoverageJson(coverageMap, functions, branches, json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    return json.toString();
+  }
 
-    JSONArrayBuilder allSourceFiles = JSONHelper.array();
+  /**
+   * Write the JSON for Coveralls to {@code out} while it is generated, with a
+   * {@code functions} array for each file that has function records, and a
+   * {@code branches} array for each file that has branch records.
+   */
+  public void writeCoverageJson(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches, final Writer out) throws IOException {
+    Map<String, String> relativePaths = getReportedFiles(coverageMap);
+    writeJob(new ArrayList<>(relativePaths.entrySet()), getDigests(relativePaths.keySet()),
+        coverageMap, functions, branches, null, null, out);
+  }
 
-    for (String path : coverageMap.keySet()) {
-      JSONObjectBuilder sourceFile = JSONHelper.object();
+  /**
+   * Write the report as jobs of a Coveralls parallel build into
+   * {@code spool}, each with at most {@code filesPerJob} files, for
+   * {@link ParallelUpload}. Jobs left from an earlier report are removed.
+   *
+   * @param buildNumber the {@code service_number} shared by all jobs
+   */
+  public void spoolJobs(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches, final Path spool,
+      final int filesPerJob, final String buildNumber) throws IOException {
+    Files.createDirectories(spool);
+    try (DirectoryStream<Path> old = Files.newDirectoryStream(spool, ParallelUpload.JOB_PREFIX
+        + "*" + ParallelUpload.JOB_SUFFIX)) {
+      for (Path p : old) {
+        Files.delete(p);
+      }
+    }
 
-      File f = new File(path);
-      if (!f.isFile()) { continue; }
+    Map<String, String> relativePaths = getReportedFiles(coverageMap);
+    Map<String, String> digests = getDigests(relativePaths.keySet());
+    List<Map.Entry<String, String>> files = new ArrayList<>(relativePaths.entrySet());
 
-      String currentDir = Paths.get(".").toAbsolutePath().
-          normalize().toString();
-      String absolutePath = f.getAbsolutePath();
+    // an empty report is still one job, so that the build has a result
+    int numJobs = Math.max(1, (files.size() + filesPerJob - 1) / filesPerJob);
+    for (int i = 0; i < numJobs; i += 1) {
+      List<Map.Entry<String, String>> chunk = files.subList(
+          i * filesPerJob, Math.min(files.size(), (i + 1) * filesPerJob));
+      Path job = spool.resolve(String.format("%s%05d%s",
+          ParallelUpload.JOB_PREFIX, i, ParallelUpload.JOB_SUFFIX));
 
-      if (absolutePath.startsWith(currentDir)) {
-        String relativePath = absolutePath.substring(
-            currentDir.length());
+      // written to a temporary file first, so a resumed upload never sends
+      // a partial job
+      Path tmp = Files.createTempFile(spool, "job", ".tmp");
+      try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        writeJob(chunk, digests, coverageMap, functions, branches,
+            buildNumber, "part-" + i, out);
+      }
+      Files.move(tmp, job, StandardCopyOption.REPLACE_EXISTING);
+    }
 
-        sourceFile.add("name", relativePath);
-        sourceFile.add("source_digest", getMd5(new FileInputStream(f)));
-        sourceFile.add("coverage", getArrayBuilder(coverageMap.get(path)));
+    StringWriter done = new StringWriter();
+    new JsonWriter(done).beginObject()
+        .name("payload").beginObject()
+        .name("build_num").value(buildNumber)
+        .name("status").value("done")
+        .endObject().endObject();
+    Files.write(spool.resolve(ParallelUpload.DONE_FILE),
+        done.toString().getBytes(StandardCharsets.UTF_8));
+  }
 
-        allSourceFiles.add(sourceFile);
+  /** Return the files below the current directory, with their relative paths. */
+  private static Map<String, String> getReportedFiles(final Map<String, long[]> coverageMap) {
+    String currentDir = Paths.get(".").toAbsolutePath().normalize().toString();
+    Map<String, String> relativePaths = new LinkedHashMap<>();
+    for (String path : coverageMap.keySet()) {
+      File f = new File(path);
+      String absolutePath = f.getAbsolutePath();
+      if (f.isFile() && absolutePath.startsWith(currentDir)) {
+        relativePaths.put(path, absolutePath.substring(currentDir.length()));
       }
     }
-
-    coverageRequest.add("source_files", allSourceFiles);
-    return coverageRequest.toString();
+    return relativePaths;
   }
 
-  private String getMd5(final InputStream code) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      DigestInputStream dis = new DigestInputStream(code, md);
+  /**
+   * Write a job with the given files. If {@code buildNumber} is set, the job
+   * is part of a parallel build.
+   */
+  private void writeJob(final List<Map.Entry<String, String>> files,
+      final Map<String, String> digests, final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches, final String buildNumber,
+      final String flagName, final Writer out) throws IOException {
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject();
 
-      byte[] buffer = new byte[1024];
-      int numRead;
-      do {
-        numRead = dis.read(buffer);
+    json.name("repo_token").value(repoToken);
+    json.name("service_name").value(serviceName);
 
-      }
-      while (numRead != -1);
+    if (includeTravisData) {
+      Map<String, String> env = System.getenv();
+      json.name("service_job_id").value(env.get("TRAVIS_JOB_ID"));
+      json.name("service_pull_request").value(env.get("TRAVIS_PULL_REQUEST"));
+    }
 
-      byte[] result = md.digest();
-      BigInteger bigInt = new BigInteger(1, result);
-      String str = bigInt.toString(16);
+    if (buildNumber != null) {
+      json.name("parallel").value(true);
+      json.name("service_number").value(buildNumber);
+      json.name("flag_name").value(flagName);
+    }
 
-      while (str.length() < 32) {
-        str = "0" + str;
-      }
+    json.name("source_files").beginArray();
+    for (Map.Entry<String, String> e : files) {
+      String path = e.getKey();
+      json.beginObject();
 
-      return str;
+      json.name("name").value(e.getValue());
+      json.name("source_digest").value(digests.get(path));
+      json.name("coverage");
+      writeLines(json, coverageMap.get(path));
+      if (functions.containsKey(path)) {
+        json.name("functions");
+        writeFunctions(json, functions.get(path));
+      }
+      if (branches.containsKey(path)) {
+        json.name("branches");
+        writeBranches(json, branches.get(path));
+      }
 
-    } catch (NoSuchAlgorithmException | IOException e) {
-      throw new RuntimeException(e);
+      json.endObject();
     }
+    json.endArray();
+
+    json.endObject();
   }
 
-  private JSONArrayBuilder getArrayBuilder(final Long[] values) {
-    JSONArrayBuilder array = JSONHelper.array();
+  /**
+   * Digest the files in parallel, which is what dominates the report time
+   * for large repositories.
+   */
+  private Map<String, String> getDigests(final Collection<String> paths) {
+    Map<String, String> digests = new ConcurrentHashMap<>();
+    paths.parallelStream().forEach(path -> {
+      try {
+        digests.put(path, digestCache.getDigest(Paths.get(path)));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to digest " + path, e);
+      }
+    });
+    return digests;
+  }
 
-    for (Long l : values) {
-      if (l != null) {
-        array.add((int) (long) l);
+  private static void writeLines(final JsonWriter json, final long[] values)
+      throws IOException {
+    json.beginArray();
+    for (long l : values) {
+      if (l != Gcov.NO_CODE) {
+        json.value(l);
       } else {
-        array.add(l);
+        json.nullValue();
       }
     }
+    json.endArray();
+  }
 
-    return array;
+  private static void writeFunctions(final JsonWriter json,
+      final List<FunctionRecord> functions) throws IOException {
+    json.beginArray();
+    for (FunctionRecord f : functions) {
+      json.beginObject();
+      json.name("name").value(f.name);
+      json.name("line").value(f.line);
+      json.name("count").value(f.count);
+      json.endObject();
+    }
+    json.endArray();
   }
 
-  private void sendRequestCoveralls(final String json) {
-    String url = "https://coveralls.io/api/v1/jobs";
-    try {
-      MultipartUtility multipart = new MultipartUtility(url, "UTF-8");
-      multipart.addFilePart("json_file", json, "application/json");
+  /** Coveralls expects a flat array of line, block, branch, and hits. */
+  private static void writeBranches(final JsonWriter json,
+      final List<BranchRecord> branches) throws IOException {
+    json.beginArray();
+    for (BranchRecord b : branches) {
+      json.value(b.line);
+      json.value(b.block);
+      json.value(b.branch);
+      json.value(b.count);
+    }
+    json.endArray();
+  }
 
-      multipart.finish();
-    } catch (IOException ex) {
+  /**
+   * Stream the report to {@code url}, and print the response. The JSON is
+   * generated while it is sent, see {@link Uploader}.
+   */
+  private void sendRequestCoveralls(final String url, final boolean gzip,
+      final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches) {
+    try {
+      String response = new Uploader(url, gzip).send("json_file", "application/json",
+          out -> writeCoverageJson(coverageMap, functions, branches, out)).join();
+      // Checkstyle: stop
+      System.out.println(response);
+      // Checkstyle: resume
+    } catch (IOException | CompletionException ex) {
       // Checkstyle: stop
       System.err.println(ex);
       // Checkstyle: resume
     }
   }
 
-  public static void main(final String[] args) {
-    if (args.length < 2) {
+  /**
+   * Upload the jobs in {@code spool}, see {@link ParallelUpload}, and
+   * return whether all were sent.
+   */
+  private static boolean sendParallel(final String url, final String doneUrl,
+      final boolean gzip, final String repoToken, final Path spool)
+      throws IOException, InterruptedException {
+    Uploader jobs = new Uploader(url, gzip, REQUEST_TIMEOUT);
+    Uploader done = new Uploader(doneUrl + "?repo_token="
+        + URLEncoder.encode(repoToken, StandardCharsets.UTF_8), false, REQUEST_TIMEOUT);
+    boolean sent = new ParallelUpload(jobs, done, ParallelUpload.DEFAULT_CONCURRENCY,
+        ParallelUpload.DEFAULT_MAX_ATTEMPTS, ParallelUpload.DEFAULT_INITIAL_BACKOFF).run(spool);
+    if (!sent) {
+      // Checkstyle: stop
+      System.err.println("Not all jobs were uploaded. Resume with --resume --spool=" + spool);
+      // Checkstyle: resume
+    }
+    return sent;
+  }
+
+  public static void main(final String[] args) throws InterruptedException {
+    String url = Uploader.COVERALLS_URL;
+    String doneUrl = COVERALLS_WEBHOOK;
+    boolean gzip = false;
+    int filesPerJob = 0;
+    String buildNumber = System.getenv("TRAVIS_BUILD_NUMBER");
+    Path spool = Paths.get("coveralls-spool");
+    boolean resume = false;
+
+    int first = 0;
+    while (first < args.length && args[first].startsWith("--")) {
+      String arg = args[first];
+      if (arg.equals("--gzip")) {
+        gzip = true;
+      } else if (arg.equals("--resume")) {
+        resume = true;
+      } else if (arg.startsWith("--url=")) {
+        url = arg.substring("--url=".length());
+      } else if (arg.startsWith("--done-url=")) {
+        doneUrl = arg.substring("--done-url=".length());
+      } else if (arg.startsWith("--parallel=")) {
+        filesPerJob = Integer.parseInt(arg.substring("--parallel=".length()));
+      } else if (arg.startsWith("--build=")) {
+        buildNumber = arg.substring("--build=".length());
+      } else if (arg.startsWith("--spool=")) {
+        spool = Paths.get(arg.substring("--spool=".length()));
+      }
+      first += 1;
+    }
+
+    if (args.length - first < (resume ? 1 : 2)
+        || (filesPerJob > 0 && buildNumber == null)) {
       // Checkstyle: stop
-      System.out.println("Usage: java Report repoToken gcovFile");
+      System.out.println("Usage: java Report [--url=<url>] [--gzip] repoToken "
+          + "gcovFile|covbFile [digestCacheFile]");
+      System.out.println("       java Report [--url=<url>] [--gzip] [--done-url=<url>] "
+          + "--parallel=<filesPerJob> [--build=<number>] [--spool=<dir>] repoToken "
+          + "gcovFile|covbFile [digestCacheFile]");
+      System.out.println("       java Report [--url=<url>] [--gzip] [--done-url=<url>] "
+          + "--resume [--spool=<dir>] repoToken");
       // Checkstyle: resume
+      return;
     }
 
-    Report report = new Report(args[0]);
     try {
-      FileInputStream in = new FileInputStream(args[1]);
-      String result = report.generateCoverageJson(Gcov.load(in));
-      report.sendRequestCoveralls(result);
+      if (resume) {
+        if (!sendParallel(url, doneUrl, gzip, args[first], spool)) {
+          System.exit(1);
+        }
+        return;
+      }
+
+      DigestCache cache = args.length - first > 2
+          ? new DigestCache(Paths.get(args[first + 2])) : new DigestCache();
+      Report report = new Report(args[first], cache);
+      Path file = Paths.get(args[first + 1]);
+      CoverageFormat format = CoverageFormat.forPath(file);
+      if (filesPerJob > 0) {
+        report.spoolJobs(format.load(file), format.loadFunctions(file),
+            format.loadBranches(file), spool, filesPerJob, buildNumber);
+        cache.save();
+        if (!sendParallel(url, doneUrl, gzip, args[first], spool)) {
+          System.exit(1);
+        }
+      } else {
+        report.sendRequestCoveralls(url, gzip, format.load(file),
+            format.loadFunctions(file), format.loadBranches(file));
+        cache.save();
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -0,0 +1,189 @@
+package coveralls;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends a file as a multipart/form-data POST request. The content is
+ * written by a separate thread into a pipe, from which the HTTP client
+ * reads the request body, so the file is never held in memory as a whole.
+ * If enabled, the body is gzip-compressed and sent with
+ * {@code Content-Encoding: gzip}, which not all servers accept.
+ */
+final class Uploader {
+
+  static final String COVERALLS_URL = "https://coveralls.io/api/v1/jobs";
+
+  private static final String LINE_FEED   = "\r\n";
+  private static final int    BUFFER_SIZE = 64 * 1024;
+
+  /** A response with a status other than 200. */
+  static final class StatusException extends IOException {
+    private static final long serialVersionUID = -1874385720346522412L;
+
+    final int status;
+
+    StatusException(final int status, final String body) {
+      super("Server returned non-OK status: " + status + ": " + body);
+      this.status = status;
+    }
+  }
+
+  /** Writes the content of the uploaded file. */
+  interface Content {
+    void writeTo(Writer out) throws IOException;
+  }
+
+  private final HttpClient client;
+  private final URI        uri;
+  private final boolean    gzip;
+  private final Duration   timeout;
+
+  Uploader(final String url, final boolean gzip) {
+    this(url, gzip, null);
+  }
+
+  /** @param timeout for each request, or {@code null} for none */
+  Uploader(final String url, final boolean gzip, final Duration timeout) {
+    this.client  = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    this.uri     = URI.create(url);
+    this.gzip    = gzip;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Post {@code content} as the file part {@code fieldName}. The future
+   * completes with the response body for status 200, and fails with a
+   * {@link StatusException} otherwise, or if writing the content fails.
+   */
+  CompletableFuture<String> send(final String fieldName, final String contentType,
+      final Content content) throws IOException {
+    String boundary = "===" + System.currentTimeMillis() + "===";
+
+    PipedInputStream pipeIn = new PipedInputStream(BUFFER_SIZE);
+    PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+    Body body = new Body(pipeIn);
+
+    Thread writer = new Thread(() -> {
+      try (OutputStream out = gzip
+          ? new GZIPOutputStream(pipeOut, BUFFER_SIZE) : pipeOut;
+           Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+        try {
+          writeBody(w, boundary, fieldName, contentType, content);
+        } catch (IOException | RuntimeException e) {
+          // set before the pipe is closed, so that the reader sees it
+          body.failure = e;
+        }
+      } catch (IOException e) {
+        if (body.failure == null) {
+          body.failure = e;
+        }
+      }
+    }, "Coverage Report Writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+        .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+        .header("User-Agent", "Truffle Coverall.io Client")
+        .POST(HttpRequest.BodyPublishers.ofInputStream(() -> body));
+    if (gzip) {
+      request.header("Content-Encoding", "gzip");
+    }
+    if (timeout != null) {
+      request.timeout(timeout);
+    }
+
+    return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString())
+        .whenComplete((response, e) -> {
+          // unblock the writer if the request ended before the body
+          try {
+            pipeIn.close();
+          } catch (IOException ignored) {
+            // nothing to clean up
+          }
+        })
+        .thenApply(response -> {
+          if (body.failure != null) {
+            throw new CompletionException(
+                new IOException("Failed to write the request", body.failure));
+          }
+          return checkStatus(response);
+        });
+  }
+
+  /** Post {@code json} as the request body, see {@link #send}. */
+  CompletableFuture<String> postJson(final String json) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+        .header("Content-Type", "application/json")
+        .header("User-Agent", "Truffle Coverall.io Client")
+        .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8));
+    if (timeout != null) {
+      request.timeout(timeout);
+    }
+    return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString())
+        .thenApply(Uploader::checkStatus);
+  }
+
+  private static String checkStatus(final HttpResponse<String> response) {
+    if (response.statusCode() != 200) {
+      throw new CompletionException(new StatusException(response.statusCode(), response.body()));
+    }
+    return response.body();
+  }
+
+  private static void writeBody(final Writer w, final String boundary,
+      final String fieldName, final String contentType, final Content content)
+      throws IOException {
+    w.write("--" + boundary + LINE_FEED);
+    w.write("Content-Disposition: form-data; name=\"" + fieldName
+        + "\"; filename=\"" + fieldName + "\"" + LINE_FEED);
+    w.write("Content-Type: " + contentType + LINE_FEED);
+    w.write("Content-Transfer-Encoding: binary" + LINE_FEED);
+    w.write(LINE_FEED);
+    content.writeTo(w);
+    w.write(LINE_FEED);
+    w.write("--" + boundary + "--" + LINE_FEED);
+  }
+
+  /** Turns the end of the pipe into an error if the writer failed. */
+  private static final class Body extends FilterInputStream {
+    volatile Exception failure;
+
+    Body(final InputStream in) {
+      super(in);
+    }
+
+    private int check(final int result) throws IOException {
+      if (result == -1 && failure != null) {
+        throw new IOException("Failed to write the request", failure);
+      }
+      return result;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return check(super.read());
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      return check(super.read(b, off, len));
+    }
+  }
+}
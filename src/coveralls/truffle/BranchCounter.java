@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+/**
+ * The outcome counters of one branch site, i.e., the condition of a
+ * statement. Both counters exist from the start, so counting an outcome is a
+ * single increment.
+ *
+ * <p>Sites are identified by line and start column in the output, which,
+ * unlike their order of execution, is the same in every process. Sites that
+ * never produced a value are reported with zero counts, and sites that
+ * produced other values than booleans are not conditions and are skipped.
+ */
+final class BranchCounter {
+  /** 0-based index of the line of the site. */
+  final int line;
+  final int column;
+
+  final Counter taken;
+  final Counter notTaken;
+
+  /** Set once the site produced a value that is not a boolean. */
+  volatile boolean notBoolean;
+
+  BranchCounter(final int line, final int column) {
+    this.line      = line;
+    this.column    = column;
+    this.taken     = new Counter(line);
+    this.notTaken  = new Counter(line);
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import com.oracle.truffle.api.CompilerDirectives;
+import com.oracle.truffle.api.CompilerDirectives.CompilationFinal;
+import com.oracle.truffle.api.frame.VirtualFrame;
+import com.oracle.truffle.api.instrumentation.ExecutionEventNode;
+import com.oracle.truffle.api.profiles.ConditionProfile;
+
+/**
+ * Counts the boolean results of an expression as taken and not-taken
+ * outcomes. Other results mark the site as not being a condition, see
+ * {@link BranchCounter#notBoolean}. The result is already boxed by the
+ * instrumentation framework, and {@link Boolean} values are canonical, so
+ * counting does not allocate.
+ */
+class BranchNode extends ExecutionEventNode {
+  protected final BranchCounter counter;
+
+  private final ConditionProfile outcome = ConditionProfile.create();
+
+  @CompilationFinal private boolean sawNotBoolean;
+
+  BranchNode(final BranchCounter counter) {
+    this.counter = counter;
+  }
+
+  @Override
+  protected void onReturnValue(final VirtualFrame frame, final Object result) {
+    if (result instanceof Boolean) {
+      if (outcome.profile((Boolean) result)) {
+        counter.taken.inc();
+      } else {
+        counter.notTaken.inc();
+      }
+    } else if (!sawNotBoolean) {
+      CompilerDirectives.transferToInterpreterAndInvalidate();
+      sawNotBoolean = true;
+      counter.notBoolean = true;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.oracle.truffle.api.CompilerDirectives.TruffleBoundary;
+import com.oracle.truffle.api.nodes.RootNode;
+import com.oracle.truffle.api.source.SourceSection;
+
+import gcov.CallEdge;
+
+/**
+ * The counts of caller to callee edges.
+ *
+ * <p>Functions are interned to small ids, starting at 1. Each call site
+ * caches the first callee it sees in its {@link Site}, so that calls at
+ * monomorphic sites cost one compare and one increment. Calls to other
+ * callees go to an open-addressing table of primitive arrays, keyed by
+ * both ids packed into a long.
+ */
+final class CallEdgeTable {
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int NONE = 0;
+
+  /** The counts of one call site. */
+  static final class Site {
+    final int caller;
+    final CallEdgeTable table;
+
+    private volatile int callee = NONE;
+    private final Counter calls = new Counter(-1);
+
+    Site(final int caller, final CallEdgeTable table) {
+      this.caller = caller;
+      this.table  = table;
+    }
+
+    void called(final int calleeId) {
+      if (calleeId == callee) {
+        calls.inc();
+      } else {
+        calledOther(calleeId);
+      }
+    }
+
+    @TruffleBoundary
+    private void calledOther(final int calleeId) {
+      synchronized (this) {
+        if (callee == NONE) {
+          callee = calleeId;
+        }
+      }
+      if (calleeId == callee) {
+        calls.inc();
+      } else {
+        table.increment(caller, calleeId);
+      }
+    }
+  }
+
+  private final Map<String, Integer> ids   = new HashMap<>();
+  private final List<String>         paths = new ArrayList<>();
+  private final List<String>         names = new ArrayList<>();
+  private int[] lines = new int[INITIAL_CAPACITY];
+
+  private final List<Site> sites = new ArrayList<>();
+
+  private long[] keys   = new long[INITIAL_CAPACITY];
+  private long[] counts = new long[INITIAL_CAPACITY];
+  private int    size;
+
+  CallEdgeTable() {
+    // id 0 is NONE
+    paths.add(null);
+    names.add(null);
+  }
+
+  /** Return the id of the function of {@code root}. */
+  synchronized int intern(final RootNode root) {
+    SourceSection section = root.getSourceSection();
+    String path = section == null ? "<unknown>" : SourceCoverage.getPath(section.getSource());
+    int line = section == null || !section.isAvailable() ? 0 : section.getStartLine();
+    String name = root.getName() == null ? "<unknown>" : root.getName();
+
+    return ids.computeIfAbsent(path + '\t' + line + '\t' + name, k -> {
+      int id = paths.size();
+      paths.add(path);
+      names.add(name);
+      if (id >= lines.length) {
+        lines = Arrays.copyOf(lines, 2 * lines.length);
+      }
+      lines[id] = line;
+      return id;
+    });
+  }
+
+  synchronized Site createSite(final int caller) {
+    Site site = new Site(caller, this);
+    sites.add(site);
+    return site;
+  }
+
+  private static int hash(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  synchronized void increment(final int caller, final int callee) {
+    add(((long) caller << 32) | callee, 1);
+  }
+
+  private void add(final long key, final long n) {
+    if (2 * (size + 1) > keys.length) {
+      grow();
+    }
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != 0 && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (keys[i] == 0) {
+      keys[i] = key;
+      size += 1;
+    }
+    counts[i] += n;
+  }
+
+  private void grow() {
+    long[] oldKeys   = keys;
+    long[] oldCounts = counts;
+    keys   = new long[2 * oldKeys.length];
+    counts = new long[2 * oldKeys.length];
+    size   = 0;
+    for (int i = 0; i < oldKeys.length; i += 1) {
+      if (oldKeys[i] != 0) {
+        add(oldKeys[i], oldCounts[i]);
+      }
+    }
+  }
+
+  /** Return the edges that were taken, with the counts of all sites. */
+  synchronized List<CallEdge> getEdges(final boolean hitOnly) {
+    CallEdgeTable all = new CallEdgeTable();
+    for (int i = 0; i < keys.length; i += 1) {
+      if (keys[i] != 0) {
+        all.add(keys[i], counts[i]);
+      }
+    }
+    for (Site s : sites) {
+      long n = s.calls.getCounter();
+      if (n > 0) {
+        all.add(((long) s.caller << 32) | s.callee, n);
+      }
+    }
+
+    List<CallEdge> edges = new ArrayList<>(all.size);
+    for (int i = 0; i < all.keys.length; i += 1) {
+      long key = all.keys[i];
+      if (key == 0) {
+        continue;
+      }
+      int caller = (int) (key >>> 32);
+      int callee = (int) key;
+      long n = hitOnly ? Math.min(all.counts[i], 1) : all.counts[i];
+      edges.add(new CallEdge(paths.get(caller), lines[caller], names.get(caller),
+          paths.get(callee), lines[callee], names.get(callee), n));
+    }
+    return edges;
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import com.oracle.truffle.api.ContextThreadLocal;
+import com.oracle.truffle.api.frame.VirtualFrame;
+import com.oracle.truffle.api.instrumentation.ExecutionEventNode;
+
+/** Counts the call edge from the active call site to this function. */
+class CallEntryNode extends ExecutionEventNode {
+  private final int callee;
+  private final ContextThreadLocal<CallSiteNode.CallStack> stack;
+
+  CallEntryNode(final int callee, final ContextThreadLocal<CallSiteNode.CallStack> stack) {
+    this.callee = callee;
+    this.stack  = stack;
+  }
+
+  @Override
+  protected void onEnter(final VirtualFrame frame) {
+    CallEdgeTable.Site site = stack.get().take();
+    if (site != null) {
+      site.called(callee);
+    }
+  }
+}
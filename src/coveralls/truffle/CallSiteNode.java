@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.Arrays;
+
+import com.oracle.truffle.api.CompilerDirectives.TruffleBoundary;
+import com.oracle.truffle.api.ContextThreadLocal;
+import com.oracle.truffle.api.frame.VirtualFrame;
+import com.oracle.truffle.api.instrumentation.ExecutionEventNode;
+
+/**
+ * Marks a call site as active while it executes. The {@link CallEntryNode}
+ * of the callee takes the innermost active site that did not call yet, so
+ * calls made to evaluate the arguments are attributed correctly.
+ */
+class CallSiteNode extends ExecutionEventNode {
+
+  /** The active call sites of a thread. */
+  static final class CallStack {
+    private CallEdgeTable.Site[] sites = new CallEdgeTable.Site[16];
+    private boolean[] called = new boolean[16];
+    private int depth;
+
+    void push(final CallEdgeTable.Site site) {
+      if (depth == sites.length) {
+        grow();
+      }
+      sites[depth]  = site;
+      called[depth] = false;
+      depth += 1;
+    }
+
+    @TruffleBoundary
+    private void grow() {
+      sites  = Arrays.copyOf(sites, 2 * sites.length);
+      called = Arrays.copyOf(called, 2 * called.length);
+    }
+
+    void pop(final CallEdgeTable.Site site) {
+      // the site may have been entered before the probes were attached
+      if (depth > 0 && sites[depth - 1] == site) {
+        depth -= 1;
+        sites[depth] = null;
+      }
+    }
+
+    /** Return the innermost site, if it did not call yet, or null. */
+    CallEdgeTable.Site take() {
+      if (depth == 0 || called[depth - 1]) {
+        return null;
+      }
+      called[depth - 1] = true;
+      return sites[depth - 1];
+    }
+  }
+
+  private final CallEdgeTable.Site site;
+  private final ContextThreadLocal<CallStack> stack;
+
+  CallSiteNode(final CallEdgeTable.Site site, final ContextThreadLocal<CallStack> stack) {
+    this.site  = site;
+    this.stack = stack;
+  }
+
+  @Override
+  protected void onEnter(final VirtualFrame frame) {
+    stack.get().push(site);
+  }
+
+  @Override
+  protected void onReturnValue(final VirtualFrame frame, final Object result) {
+    stack.get().pop(site);
+  }
+
+  @Override
+  protected void onReturnExceptional(final VirtualFrame frame, final Throwable exception) {
+    stack.get().pop(site);
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import gcov.Gcov;
+
+/**
+ * Finds the lines whose counts changed since the previous call of
+ * {@link #changed()}. Only the counters of sources that were executed in
+ * between are read, see {@link SourceCoverage#markChanged()}, so the cost
+ * does not grow with the size of the program.
+ *
+ * <p>Counters are read while guest threads run. An increment that races
+ * with {@link #changed()} may only be seen once its source is executed
+ * again, or by a full read with {@link Coverage#getCoverageMap()}.
+ */
+final class ChangeTracker {
+  private final Coverage coverage;
+  private final int      id;
+
+  /** The counts of each source at the previous call. */
+  private final Map<SourceCoverage, long[]> last = new HashMap<>();
+
+  ChangeTracker(final Coverage coverage) {
+    this.coverage = coverage;
+    this.id       = coverage.allocateTrackerId();
+  }
+
+  /**
+   * Return per path the lines whose counts changed since the previous call,
+   * with their current counts. Other lines are {@link Gcov#NO_CODE}. The
+   * first call, and the first call after a source was loaded, returns all
+   * its lines with code.
+   */
+  synchronized Map<String, long[]> changed() {
+    Map<String, long[]> delta = new HashMap<>();
+    for (SourceCoverage source : coverage.getSources()) {
+      if (source.lineCount == 0 || !source.takeChanged(id)) {
+        continue;
+      }
+
+      long[] lines = source.newLines();
+      source.addTo(lines, coverage::getCount);
+      long[] prev = last.put(source, lines);
+
+      long[] changed = null;
+      for (int i = 0; i < lines.length; i += 1) {
+        if (lines[i] != Gcov.NO_CODE
+            && (prev == null || i >= prev.length || prev[i] != lines[i])) {
+          if (changed == null) {
+            changed = delta.get(source.path);
+            changed = changed == null
+                ? Gcov.newLines(lines.length) : Gcov.ensureLength(changed, lines.length);
+            delta.put(source.path, changed);
+          }
+          Gcov.updateLine(changed, i, lines[i]);
+        }
+      }
+    }
+    return delta;
+  }
+
+  /** Give up the id of the tracker, it must not be used afterwards. */
+  synchronized void close() {
+    coverage.releaseTrackerId(id);
+    last.clear();
+  }
+}
@@ -21,26 +21,96 @@
  */
 package coveralls.truffle;
 
-import com.oracle.truffle.api.source.SourceSection;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
 
+import com.oracle.truffle.api.CompilerDirectives.CompilationFinal;
+import com.oracle.truffle.api.CompilerDirectives.TruffleBoundary;
+
+/**
+ * A statement counter that can be incremented from many threads.
+ *
+ * <p>The first thread to increment a counter becomes its owner. The owner
+ * is the only writer of {@link #base}, so its increments are a plain load
+ * and store, without a locked instruction. Any other thread is contention:
+ * it counts in a striped {@link LongAdder}, so that threads on different
+ * cores do not bounce the same cache line. {@link #getCounter()} sums both
+ * parts.
+ *
+ * <p>{@link #line} is the 0-based index of the line slot the counter
+ * reports to in its {@link SourceCoverage}. Nodes call {@link #markCovered()}
+ * when they first execute, which feeds the {@link CoverageLog}.
+ */
 class Counter {
-  private long counter;
-  public final SourceSection sourceSection;
+  private static final VarHandle BASE;
 
-  Counter(final SourceSection sourceSection) {
-    this.counter = 0;
-    this.sourceSection = sourceSection;
+  static {
+    try {
+      BASE = MethodHandles.lookup().findVarHandle(Counter.class, "base", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /** Written only by {@link #owner}, read by others with opaque access. */
+  private long base;
+  private Thread owner;
+
+  private volatile LongAdder cells;
+
+  final int line;
+
+  /** The source of the statement, set by {@link SourceCoverage#getOrCreate}. */
+  @CompilationFinal SourceCoverage source;
+
+  Counter(final int line) {
+    this.line = line;
+  }
+
+  /** Report the first execution of the statement to its source. */
+  @TruffleBoundary
+  void markCovered() {
+    source.markCovered(line);
   }
 
   void inc() {
-    counter += 1;
+    if (owner == Thread.currentThread()) {
+      BASE.setOpaque(this, base + 1);
+    } else {
+      incShared();
+    }
   }
 
-  long getCounter() {
-    return counter;
+  @TruffleBoundary
+  private void incShared() {
+    Thread current = Thread.currentThread();
+    LongAdder c = cells;
+    if (c == null) {
+      synchronized (this) {
+        if (owner == null) {
+          owner = current;
+        }
+        c = cells;
+        if (c == null && owner != current) {
+          c = new LongAdder();
+          cells = c;
+        }
+      }
+    }
+    if (c == null) {
+      BASE.setOpaque(this, base + 1);
+    } else {
+      c.increment();
+    }
   }
 
-  public SourceSection getSourceSection() {
-    return sourceSection;
+  long getCounter() {
+    long v = (long) BASE.getOpaque(this);
+    LongAdder c = cells;
+    if (c != null) {
+      v += c.sum();
+    }
+    return v;
   }
 }
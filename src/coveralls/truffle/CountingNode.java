@@ -21,18 +21,29 @@
  */
 package coveralls.truffle;
 
+import com.oracle.truffle.api.CompilerDirectives;
+import com.oracle.truffle.api.CompilerDirectives.CompilationFinal;
 import com.oracle.truffle.api.frame.VirtualFrame;
 import com.oracle.truffle.api.instrumentation.ExecutionEventNode;
 
 class CountingNode extends ExecutionEventNode {
   protected final Counter counter;
 
+  @CompilationFinal private boolean covered;
+
   CountingNode(final Counter counter) {
     this.counter = counter;
+    this.covered = counter.getCounter() > 0;
   }
 
   @Override
   protected void onEnter(final VirtualFrame frame) {
     counter.inc();
+    counter.source.markChanged();
+    if (!covered) {
+      CompilerDirectives.transferToInterpreterAndInvalidate();
+      covered = true;
+      counter.markCovered();
+    }
   }
 }
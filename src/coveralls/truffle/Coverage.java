@@ -22,36 +22,62 @@
 package coveralls.truffle;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+import org.graalvm.options.OptionCategory;
+import org.graalvm.options.OptionDescriptors;
+import org.graalvm.options.OptionKey;
+import org.graalvm.options.OptionStability;
 import org.graalvm.polyglot.Engine;
 import org.graalvm.polyglot.Instrument;
 
+import com.oracle.truffle.api.ContextThreadLocal;
 import com.oracle.truffle.api.InstrumentInfo;
+import com.oracle.truffle.api.Option;
 import com.oracle.truffle.api.TruffleLanguage;
+import com.oracle.truffle.api.instrumentation.EventBinding;
+import com.oracle.truffle.api.instrumentation.InstrumentableNode;
+import com.oracle.truffle.api.instrumentation.InstrumentableNode.WrapperNode;
 import com.oracle.truffle.api.instrumentation.Instrumenter;
 import com.oracle.truffle.api.instrumentation.LoadSourceSectionEvent;
 import com.oracle.truffle.api.instrumentation.SourceSectionFilter;
 import com.oracle.truffle.api.instrumentation.SourceSectionFilter.Builder;
+import com.oracle.truffle.api.instrumentation.StandardTags.CallTag;
+import com.oracle.truffle.api.instrumentation.StandardTags.ExpressionTag;
+import com.oracle.truffle.api.instrumentation.StandardTags.RootTag;
 import com.oracle.truffle.api.instrumentation.StandardTags.StatementTag;
 import com.oracle.truffle.api.instrumentation.TruffleInstrument;
 import com.oracle.truffle.api.instrumentation.TruffleInstrument.Registration;
+import com.oracle.truffle.api.nodes.Node;
 import com.oracle.truffle.api.nodes.RootNode;
 import com.oracle.truffle.api.source.Source;
 import com.oracle.truffle.api.source.SourceSection;
 
+import gcov.BinaryCoverage;
+import gcov.BranchRecord;
+import gcov.CallEdge;
+import gcov.CallEdges;
+import gcov.CollectorClient;
+import gcov.CounterRegion;
+import gcov.CoverageFormat;
+import gcov.DeltaLog;
+import gcov.FunctionRecord;
 import gcov.Gcov;
+import gcov.LineSet;
+import gcov.MergeMode;
+import gcov.TestCoverage;
 
 
 @Registration(name = "CoverallsTruffle", id = Coverage.ID, version = "0.1",
@@ -59,6 +85,111 @@ import gcov.Gcov;
 public class Coverage extends TruffleInstrument {
   static final String ID = "coverageId";
 
+  @Option(name = "Mode", help = "How statements are counted: COUNT records "
+      + "every execution, HIT only records whether a statement ran, and "
+      + "SAMPLE estimates counts from every n-th execution.",
+      usageSyntax = "COUNT|HIT|SAMPLE", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<CountingMode> MODE = new OptionKey<>(CountingMode.COUNT);
+
+  @Option(name = "SampleInterval", help = "In SAMPLE mode, count on average "
+      + "one in this many statement executions per thread.", usageSyntax = "[1, inf)",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<Integer> SAMPLE_INTERVAL = new OptionKey<>(100);
+
+  @Option(name = "SnapshotInterval", help = "Every this many milliseconds, "
+      + "append the lines whose counts changed to a delta log next to the "
+      + "output file. 0 disables snapshots.", usageSyntax = "[0, inf)",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<Long> SNAPSHOT_INTERVAL = new OptionKey<>(0L);
+
+  @Option(name = "MappedFile", help = "Keep the counters in this "
+      + "memory-mapped file, so that they survive if the process is killed. "
+      + "Recover them with gcov.CounterRegion. Not supported in SAMPLE mode.",
+      usageSyntax = "<path>", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<String> MAPPED_FILE = new OptionKey<>("");
+
+  @Option(name = "MappedFileSize", help = "Size of the MappedFile in "
+      + "megabytes. Statements beyond its capacity are counted on the heap.",
+      usageSyntax = "[1, 2047]", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<Integer> MAPPED_FILE_SIZE = new OptionKey<>(64);
+
+  @Option(name = "MappedFileFlushInterval", help = "Every this many "
+      + "milliseconds, copy the counts that changed into the MappedFile. "
+      + "Counts of the last interval are lost if the process is killed.",
+      usageSyntax = "[1, inf)", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<Long> MAPPED_FILE_FLUSH_INTERVAL = new OptionKey<>(100L);
+
+  @Option(name = "OutputMerge", help = "How the coverage is merged into "
+      + "the data of other processes already in the output file: SUM adds "
+      + "the counts, MAX keeps the larger, HIT keeps only 1 or 0.",
+      usageSyntax = "SUM|MAX|HIT", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<MergeMode> OUTPUT_MERGE = new OptionKey<>(MergeMode.MAX);
+
+  @Option(name = "Collector", help = "Send the coverage to the gcov.Collector "
+      + "at this address, every SnapshotInterval milliseconds if set, and on "
+      + "dispose.", usageSyntax = "unix:<path>|<host>:<port>|<port>",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<String> COLLECTOR = new OptionKey<>("");
+
+  @Option(name = "Include", help = "Only instrument sources whose path "
+      + "matches one of these comma-separated glob patterns.",
+      usageSyntax = "<glob>,<glob>,...", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<String> INCLUDE = new OptionKey<>("");
+
+  @Option(name = "Exclude", help = "Do not instrument sources whose path "
+      + "matches one of these comma-separated glob patterns.",
+      usageSyntax = "<glob>,<glob>,...", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<String> EXCLUDE = new OptionKey<>("");
+
+  @Option(name = "MimeTypes", help = "Only instrument sources with one of "
+      + "these comma-separated MIME types.", usageSyntax = "<mime>,<mime>,...",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<String> MIME_TYPES = new OptionKey<>("");
+
+  @Option(name = "Internal", help = "Also instrument internal sources, "
+      + "such as the core libraries of languages. Set to false to skip them.",
+      usageSyntax = "true|false",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<Boolean> INTERNAL = new OptionKey<>(true);
+
+  @Option(name = "Granularity", help = "What is counted: STATEMENT for each "
+      + "statement, FUNCTION only for each function, with one probe per call, "
+      + "or ALL for both.", usageSyntax = "STATEMENT|FUNCTION|ALL",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<Granularity> GRANULARITY = new OptionKey<>(Granularity.STATEMENT);
+
+  @Option(name = "Branches", help = "Also count the true and false results "
+      + "of the conditions of statements, such as if and while. Conditions "
+      + "that never run are reported with zero counts.",
+      usageSyntax = "true|false", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<Boolean> BRANCHES = new OptionKey<>(false);
+
+  @Option(name = "CallEdges", help = "Also count the calls between each pair "
+      + "of functions, written to <outputFile>.calls.",
+      usageSyntax = "true|false", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<Boolean> CALL_EDGES = new OptionKey<>(false);
+
+  @Option(name = "Enabled", help = "Collect coverage from the start. If "
+      + "false, collection is started with Coverage.start().",
+      usageSyntax = "true|false", category = OptionCategory.USER,
+      stability = OptionStability.STABLE)
+  static final OptionKey<Boolean> ENABLED = new OptionKey<>(true);
+
+  @Option(name = "TestCoverageFile", help = "Write the lines covered by each "
+      + "test, marked with Coverage.startTest(), to this file on dispose. "
+      + "Query it with gcov.TestCoverage.", usageSyntax = "<path>",
+      category = OptionCategory.USER, stability = OptionStability.STABLE)
+  static final OptionKey<String> TEST_COVERAGE_FILE = new OptionKey<>("");
+
   public static Coverage find(final Engine engine) {
     Instrument instrument = engine.getInstruments().get(ID);
     if (instrument == null) {
@@ -79,166 +210,808 @@ public class Coverage extends TruffleInstrument {
     return env.lookup(instrument, Coverage.class);
   }
 
-  private final Map<SourceSection, Counter> statements = new HashMap<>();
-  private final Set<RootNode>               rootNodes  = new HashSet<>();
+  private final Map<Source, SourceCoverage> statements = new ConcurrentHashMap<>();
 
-  private Instrumenter instrumenter;
+  /** The ids of the {@link ChangeTracker}s in use, one bit each. */
+  private int trackerIds;
+
+  private final CoverageLog log = new CoverageLog();
 
-  private String              file;
-  private Map<String, Long[]> coverage;
+  private Env          env;
+  private Instrumenter instrumenter;
+  private CountingMode mode = MODE.getDefaultValue();
+  private int          sampleInterval;
+  private long         snapshotInterval;
+  private MergeMode    outputMerge;
+
+  private CounterRegion region;
+  private RegionFlusher regionFlusher;
+
+  private Granularity         granularity;
+  private SourceSectionFilter statementFilter;
+  private SourceSectionFilter functionFilter;
+  private SourceSectionFilter branchFilter;
+  private EventBinding<?>     binding;
+  private EventBinding<?>     functionBinding;
+  private EventBinding<?>     branchBinding;
+  private SourceSectionFilter callSiteFilter;
+  private EventBinding<?>     callSiteBinding;
+  private EventBinding<?>     callEntryBinding;
+  private boolean             collecting;
+
+  private String              windowName;
+  private Map<String, long[]> windowStart;
+  private final Map<String, Map<String, long[]>> windows = new HashMap<>();
+
+  private String              testId;
+  private ChangeTracker       testTracker;
+  private final TestCoverage  tests = new TestCoverage();
+  private String              testCoverageFile;
+
+  /** Must be created in the constructor, see {@link #locals}. */
+  private final ContextThreadLocal<SamplingNode.Countdown> countdown =
+      locals.createContextThreadLocal((ctx, thread) -> new SamplingNode.Countdown(sampleInterval));
+
+  private final CallEdgeTable callEdges = new CallEdgeTable();
+  /** Must be created in the constructor, see {@link #locals}. */
+  private final ContextThreadLocal<CallSiteNode.CallStack> callStack =
+      locals.createContextThreadLocal((ctx, thread) -> new CallSiteNode.CallStack());
+
+  private String      file;
+  private Snapshotter snapshotter;
+
+  private CollectorClient collector;
+  private Snapshotter     collectorPusher;
 
   @Override
   protected void onCreate(final Env env) {
+    this.env = env;
     instrumenter = env.getInstrumenter();
-    setUpStatementInstrumentation();
+    mode = env.getOptions().get(MODE);
+    sampleInterval = env.getOptions().get(SAMPLE_INTERVAL);
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException(
+          ID + ".SampleInterval needs to be at least 1, but was " + sampleInterval);
+    }
+    snapshotInterval = env.getOptions().get(SNAPSHOT_INTERVAL);
+    outputMerge = env.getOptions().get(OUTPUT_MERGE);
+    if (outputMerge == MergeMode.SUM && snapshotInterval > 0) {
+      // the snapshots of a process would be added to its final counts
+      throw new IllegalArgumentException(
+          ID + ".SnapshotInterval is not supported with " + ID + ".OutputMerge=SUM");
+    }
+    setUpMappedCounters(env);
+    setUpCollector(env);
+    setUpInstrumentation(env);
+    testCoverageFile = env.getOptions().get(TEST_COVERAGE_FILE);
 
     env.registerService(this);
   }
 
-  private void setUpStatementInstrumentation() {
-    Builder filters = SourceSectionFilter.newBuilder();
-    filters.tagIs(StatementTag.class);
+  private void setUpMappedCounters(final Env env) {
+    String mappedFile = env.getOptions().get(MAPPED_FILE);
+    if (mappedFile.isEmpty()) {
+      return;
+    }
+
+    if (mode == CountingMode.SAMPLE) {
+      throw new IllegalArgumentException(
+          ID + ".MappedFile is not supported in SAMPLE mode");
+    }
+    int size = env.getOptions().get(MAPPED_FILE_SIZE);
+    if (size < 1 || size > 2047) {
+      throw new IllegalArgumentException(
+          ID + ".MappedFileSize needs to be between 1 and 2047, but was " + size);
+    }
+
+    long flushInterval = env.getOptions().get(MAPPED_FILE_FLUSH_INTERVAL);
+    if (flushInterval < 1) {
+      throw new IllegalArgumentException(ID
+          + ".MappedFileFlushInterval needs to be at least 1, but was " + flushInterval);
+    }
+
+    try {
+      region = CounterRegion.create(Paths.get(mappedFile), size * 1024 * 1024);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    regionFlusher = new RegionFlusher(this, env::createSystemThread, flushInterval);
+  }
+
+  private void setUpCollector(final Env env) {
+    String address = env.getOptions().get(COLLECTOR);
+    if (address.isEmpty()) {
+      return;
+    }
 
-    instrumenter.attachExecutionEventFactory(filters.build(), ctx -> {
-      Counter c;
-      if (statements.containsKey(ctx.getInstrumentedSourceSection())) {
-        c = statements.get(ctx.getInstrumentedSourceSection());
-      } else {
-        c = new Counter(ctx.getInstrumentedSourceSection());
-        statements.put(ctx.getInstrumentedSourceSection(), c);
+    try {
+      collector = new CollectorClient(address);
+    } catch (IOException e) {
+      fallBackFromCollector(e);
+      return;
+    }
+    collectorPusher = new Snapshotter(this, env, collector::send, snapshotInterval);
+    if (snapshotInterval > 0) {
+      collectorPusher.start();
+    }
+  }
+
+  /**
+   * Log that the collector cannot be reached, and write the coverage to the
+   * output file instead, see {@link #getCollectorFallbackFile()}.
+   */
+  private void fallBackFromCollector(final IOException e) {
+    if (collector != null) {
+      try {
+        collector.close();
+      } catch (IOException closeFailure) {
+        e.addSuppressed(closeFailure);
       }
-      return new CountingNode(c);
-    });
+      collector = null;
+    }
+    if (file == null) {
+      file = getCollectorFallbackFile();
+    }
+    env.getLogger(Coverage.class).warning("Cannot send coverage to the collector at "
+        + env.getOptions().get(COLLECTOR) + ", writing it to " + file + " instead: " + e);
+  }
+
+  /**
+   * Return the output file used if the collector cannot be reached and no
+   * output file was set: {@code coverage-<pid>.gcov} in the working directory.
+   */
+  static String getCollectorFallbackFile() {
+    return "coverage-" + ProcessHandle.current().pid() + ".gcov";
+  }
+
+  private void setUpInstrumentation(final Env env) {
+    granularity = env.getOptions().get(GRANULARITY);
+    statementFilter = sourceFilters(env).tagIs(StatementTag.class).build();
+    functionFilter  = sourceFilters(env).tagIs(RootTag.class).build();
+    if (env.getOptions().get(BRANCHES)) {
+      branchFilter = sourceFilters(env).tagIs(ExpressionTag.class).build();
+    }
+    if (env.getOptions().get(CALL_EDGES)) {
+      callSiteFilter = sourceFilters(env).tagIs(CallTag.class).build();
+    }
+
+    if (env.getOptions().get(ENABLED)) {
+      start();
+    }
+
+    if (granularity.hasStatements()) {
+      attachStatementListener();
+    }
+    if (granularity.hasFunctions()) {
+      attachFunctionListener();
+    }
+    if (branchFilter != null) {
+      attachBranchListener();
+    }
+  }
+
+  /** Filters for the sources selected by the options. */
+  private static Builder sourceFilters(final Env env) {
+    Builder filters = SourceSectionFilter.newBuilder();
+    filters.includeInternal(env.getOptions().get(INTERNAL));
+
+    List<String> mimeTypes = SourceFilter.split(env.getOptions().get(MIME_TYPES));
+    if (!mimeTypes.isEmpty()) {
+      filters.mimeTypeIs(mimeTypes.toArray(new String[0]));
+    }
 
-    instrumenter.attachLoadSourceSectionListener(
-        SourceSectionFilter.newBuilder().build(),
+    SourceFilter sources = SourceFilter.create(
+        env.getOptions().get(INCLUDE), env.getOptions().get(EXCLUDE));
+    if (sources != null) {
+      filters.sourceIs(sources);
+    }
+    return filters;
+  }
+
+  private void attachFunctionListener() {
+    // record all functions, so that those that never run are reported
+    instrumenter.attachLoadSourceSectionListener(functionFilter,
         (final LoadSourceSectionEvent event) -> {
-          rootNodes.add(event.getNode().getRootNode());
+          SourceSection section = event.getSourceSection();
+          if (section != null && section.isAvailable()) {
+            getSourceCoverage(section.getSource())
+                .getOrCreateFunction(section, getName(event.getNode()));
+          }
         },
         true);
   }
 
+  private void attachStatementListener() {
+    instrumenter.attachLoadSourceSectionListener(statementFilter,
+        (final LoadSourceSectionEvent event) -> {
+          SourceSection section = event.getSourceSection();
+          if (section != null && section.isAvailable()) {
+            SourceCoverage source = getSourceCoverage(section.getSource());
+            source.addStatement(section);
+            if (region != null) {
+              // record all statements in the region, so that it knows about
+              // code that never runs
+              source.getOrCreate(section, counterFactory(source));
+            }
+          }
+        },
+        true);
+  }
+
+  private void attachBranchListener() {
+    // record the conditions of statements, so that those that never run are
+    // reported with zero counts
+    instrumenter.attachLoadSourceSectionListener(branchFilter,
+        (final LoadSourceSectionEvent event) -> {
+          SourceSection section = event.getSourceSection();
+          if (section != null && section.isAvailable()
+              && isStatementOperand(event.getNode())) {
+            getSourceCoverage(section.getSource()).getOrCreateBranch(section);
+          }
+        },
+        true);
+  }
+
+  /**
+   * Whether the closest instrumentable parent of {@code node} is a statement
+   * but not an expression, as for the conditions of {@code if} and loops.
+   */
+  private static boolean isStatementOperand(final Node node) {
+    for (Node parent = node.getParent(); parent != null; parent = parent.getParent()) {
+      if (parent instanceof InstrumentableNode && !(parent instanceof WrapperNode)
+          && ((InstrumentableNode) parent).isInstrumentable()) {
+        InstrumentableNode p = (InstrumentableNode) parent;
+        return p.hasTag(StatementTag.class) && !p.hasTag(ExpressionTag.class);
+      }
+    }
+    return false;
+  }
+
+  private EventBinding<?> attachFunctionNodes() {
+    return instrumenter.attachExecutionEventFactory(functionFilter, ctx -> {
+      SourceSection section = ctx.getInstrumentedSourceSection();
+      FunctionCounter counter = getSourceCoverage(section.getSource())
+          .getOrCreateFunction(section, getName(ctx.getInstrumentedNode()));
+      if (mode == CountingMode.HIT) {
+        return new HitOnceNode(counter);
+      }
+      // function entries are rare enough to be counted exactly in SAMPLE mode
+      return new CountingNode(counter);
+    });
+  }
+
+  private static String getName(final Node node) {
+    RootNode root = node.getRootNode();
+    String name = root == null ? null : root.getName();
+    return name == null ? "<unknown>" : name;
+  }
+
+  private EventBinding<?> attachCountingNodes() {
+    return instrumenter.attachExecutionEventFactory(statementFilter, ctx -> {
+      SourceSection section = ctx.getInstrumentedSourceSection();
+      SourceCoverage source = getSourceCoverage(section.getSource());
+      switch (mode) {
+        case HIT:
+          return new HitOnceNode(source.getOrCreate(section, counterFactory(source)));
+        case SAMPLE:
+          SampledCounter sc = (SampledCounter) source.getOrCreate(
+              section, SampledCounter::new);
+          return new SamplingNode(sc, countdown);
+        default:
+          return new CountingNode(source.getOrCreate(section, counterFactory(source)));
+      }
+    });
+  }
+
+  /**
+   * Start collecting coverage, if it is not collected already. Counters are
+   * kept while collection is stopped, so counts accumulate over all
+   * collection windows.
+   */
+  public void start() {
+    start(null);
+  }
+
+  /**
+   * Start collecting coverage, see {@link #start()}. If {@code window} is not
+   * {@code null}, the counts collected until {@link #stop()} are also
+   * available separately from {@link #getWindowCoverage(String)}.
+   */
+  public synchronized void start(final String window) {
+    if (collecting) {
+      return;
+    }
+    collecting = true;
+    if (window != null) {
+      windowName  = window;
+      windowStart = getCoverageMap();
+    }
+    if (granularity.hasStatements()) {
+      binding = attachCountingNodes();
+    }
+    if (granularity.hasFunctions()) {
+      functionBinding = attachFunctionNodes();
+    }
+    if (branchFilter != null) {
+      branchBinding = instrumenter.attachExecutionEventFactory(branchFilter, ctx -> {
+        // probe only the conditions registered at load time
+        if (!isStatementOperand(ctx.getInstrumentedNode())) {
+          return null;
+        }
+        SourceSection section = ctx.getInstrumentedSourceSection();
+        return new BranchNode(
+            getSourceCoverage(section.getSource()).getOrCreateBranch(section));
+      });
+    }
+    if (callSiteFilter != null) {
+      callSiteBinding = instrumenter.attachExecutionEventFactory(callSiteFilter,
+          ctx -> new CallSiteNode(callEdges.createSite(
+              callEdges.intern(ctx.getInstrumentedNode().getRootNode())), callStack));
+      callEntryBinding = instrumenter.attachExecutionEventFactory(functionFilter,
+          ctx -> new CallEntryNode(
+              callEdges.intern(ctx.getInstrumentedNode().getRootNode()), callStack));
+    }
+  }
+
+  /**
+   * Stop collecting coverage. The probes are removed from the ASTs, so that
+   * code compiled afterwards runs at uninstrumented speed.
+   */
+  public synchronized void stop() {
+    if (!collecting) {
+      return;
+    }
+    collecting = false;
+    if (binding != null) {
+      binding.dispose();
+      binding = null;
+    }
+    if (functionBinding != null) {
+      functionBinding.dispose();
+      functionBinding = null;
+    }
+    if (branchBinding != null) {
+      branchBinding.dispose();
+      branchBinding = null;
+    }
+    if (callSiteBinding != null) {
+      callSiteBinding.dispose();
+      callEntryBinding.dispose();
+      callSiteBinding  = null;
+      callEntryBinding = null;
+    }
+
+    if (windowName != null) {
+      windows.put(windowName, subtract(getCoverageMap(), windowStart));
+      windowName  = null;
+      windowStart = null;
+    }
+  }
+
+  public synchronized boolean isCollecting() {
+    return collecting;
+  }
+
+  /**
+   * Return the counts of the collection window with the given name, or
+   * {@code null} if no such window was completed.
+   */
+  public synchronized Map<String, long[]> getWindowCoverage(final String window) {
+    return windows.get(window);
+  }
+
+  /**
+   * Mark the start of the test {@code id}: the lines executed until
+   * {@link #endTest()} are recorded as covered by it, see
+   * {@link #getTestCoverage()}. A test that is still running is ended first.
+   *
+   * <p>Tests are told apart by the growth of the counters, so this needs
+   * {@link CountingMode#COUNT}. Only the sources executed since the previous
+   * call are read, see {@link ChangeTracker}.
+   */
+  public synchronized void startTest(final String id) {
+    if (mode != CountingMode.COUNT) {
+      throw new IllegalStateException(
+          "Per-test coverage needs " + ID + ".Mode=COUNT, but was " + mode);
+    }
+    endTest();
+    if (testTracker == null) {
+      testTracker = new ChangeTracker(this);
+    }
+    // skip what ran between tests
+    testTracker.changed();
+    testId = id;
+  }
+
+  /** Mark the end of the test started last, if any. */
+  public synchronized void endTest() {
+    if (testId == null) {
+      return;
+    }
+
+    Map<String, LineSet> covered = new HashMap<>();
+    for (Map.Entry<String, long[]> e : testTracker.changed().entrySet()) {
+      long[] lines = e.getValue();
+      BitSet executed = new BitSet(lines.length);
+      for (int i = 0; i < lines.length; i += 1) {
+        if (lines[i] > 0) {
+          executed.set(i);
+        }
+      }
+      covered.put(e.getKey(), LineSet.of(executed));
+    }
+    tests.add(testId, covered);
+    testId = null;
+  }
+
+  /** Return the lines covered by each test completed so far. */
+  public TestCoverage getTestCoverage() {
+    return tests;
+  }
+
+  private static Map<String, long[]> subtract(final Map<String, long[]> end,
+      final Map<String, long[]> start) {
+    for (Map.Entry<String, long[]> e : end.entrySet()) {
+      long[] before = start.get(e.getKey());
+      if (before == null) {
+        continue;
+      }
+      long[] lines = e.getValue();
+      for (int i = 0; i < lines.length && i < before.length; i += 1) {
+        if (lines[i] != Gcov.NO_CODE && before[i] != Gcov.NO_CODE) {
+          lines[i] = Math.max(0, lines[i] - before[i]);
+        }
+      }
+    }
+    return end;
+  }
+
+  @Override
+  protected OptionDescriptors getOptionDescriptors() {
+    return new CoverageOptionDescriptors();
+  }
+
   @Override
   protected void onDispose(final Env env) {
+    if (region != null) {
+      regionFlusher.stop();
+      region.force();
+    }
+
+    if (collector != null) {
+      try {
+        collectorPusher.stop(false);
+        if (collectorPusher.getFailure() != null) {
+          // an earlier snapshot was lost
+          throw collectorPusher.getFailure();
+        }
+        // the deltas may miss increments that raced with them, and the
+        // collector keeps the largest count it received, so send them all
+        collector.send(getCoverageMap());
+        collector.sendRecords(getFunctionCoverage(), getBranchCoverage());
+        collector.close();
+      } catch (IOException e) {
+        fallBackFromCollector(e);
+      }
+    }
+
+    if (!testCoverageFile.isEmpty()) {
+      endTest();
+      try {
+        TestCoverage.update(tests, Paths.get(testCoverageFile));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
     if (file == null) {
       return;
     }
 
     try {
-      Map<String, Long[]> map = getCoverageMap(coverage);
-      try (FileWriter writter = new FileWriter(file)) {
-        writter.write(Gcov.toString(map));
+      if (snapshotter != null) {
+        snapshotter.stop(false);
+      }
+
+      // the file is read again under a lock, because other processes may
+      // have written to it since setOutputFile()
+      Path path = Paths.get(file);
+      CoverageFormat.forPath(path).update(getCoverageMap(), getFunctionCoverage(),
+          getBranchCoverage(), path, outputMerge, mode == CountingMode.HIT);
+      if (callSiteFilter != null) {
+        CallEdges.update(getCallEdges(), CallEdges.forCoverageFile(path), outputMerge);
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  public Map<String, Long[]> getCoverageMap(final Map<String, Long[]> oldData) {
-    Map<String, Long[]> coverageMap = new HashMap<>();
+  /** Return the sources loaded so far, see {@link ChangeTracker}. */
+  Collection<SourceCoverage> getSources() {
+    return statements.values();
+  }
 
-    // cover executed lines
-    for (Counter counter : statements.values()) {
-      processCoverage(counter.getCounter(), counter.getSourceSection(), coverageMap);
+  /** Return an unused id for a {@link ChangeTracker}, there are at most 32. */
+  synchronized int allocateTrackerId() {
+    int id = Integer.numberOfTrailingZeros(~trackerIds);
+    if (id == Integer.SIZE) {
+      throw new IllegalStateException("Too many change trackers");
     }
+    trackerIds |= 1 << id;
+    for (SourceCoverage source : statements.values()) {
+      source.resetChanged(id);
+    }
+    return id;
+  }
+
+  synchronized void releaseTrackerId(final int id) {
+    trackerIds &= ~(1 << id);
+  }
+
+  SourceCoverage getSourceCoverage(final Source source) {
+    return statements.computeIfAbsent(source, s -> {
+      SourceCoverage sc = new SourceCoverage(s, log);
+      if (region != null) {
+        sc.regionId = region.addSource(sc.path, sc.lineCount);
+      }
+      return sc;
+    });
+  }
 
-    // cover not executed lines
-    List<SourceSection> sectionsNotExec = getCodeNotExecuted();
-    for (SourceSection sourceSection : sectionsNotExec) {
-      processCoverage(0, sourceSection, coverageMap);
+  private IntFunction<Counter> counterFactory(final SourceCoverage source) {
+    if (region == null || source.regionId < 0) {
+      return Counter::new;
     }
 
+    return line -> {
+      int offset = region.addStatement(source.regionId, line);
+      if (offset < 0) {
+        return new Counter(line);
+      }
+      return new MappedCounter(line, region, offset);
+    };
+  }
+
+  /**
+   * Return the coverage per file, merged with {@code oldData}. Lines without
+   * code are {@link Gcov#NO_CODE}.
+   */
+  public Map<String, long[]> getCoverageMap(final Map<String, long[]> oldData) {
+    Map<String, long[]> coverageMap = collectLines(this::getCount);
+
     // merge with old data
-    for (Entry<String, Long[]> e : oldData.entrySet()) {
-      Long[] data = coverageMap.get(e.getKey());
-      Long[] oldD = e.getValue();
-      if (data != null) {
-        assert oldD.length <= data.length : "The gcov data format doesn't make lines explicit that don't have code";
-        for (int i = 0; i < oldD.length; i += 1) {
-          if (oldD[i] != null) {
-            updateLine(data, i, oldD[i]);
-          }
-        }
-      } else {
-        assert oldD != null;
-        coverageMap.put(e.getKey(), oldD);
+    MergeMode.MAX.merge(coverageMap, oldData);
+
+    return coverageMap;
+  }
+
+  /**
+   * Return the coverage per file, without merging. Lines without code are
+   * {@link Gcov#NO_CODE}.
+   */
+  public Map<String, long[]> getCoverageMap() {
+    return collectLines(this::getCount);
+  }
+
+  /**
+   * Return the coverage of the file with the given path, or {@code null} if
+   * no source with this path was loaded. Only the counters of this file are
+   * read.
+   */
+  public long[] getLines(final String path) {
+    long[] lines = null;
+    for (SourceCoverage source : statements.values()) {
+      if (source.path.equals(path) && source.lineCount > 0) {
+        lines = lines == null
+            ? source.newLines() : Gcov.ensureLength(lines, source.lineCount);
+        source.addTo(lines, this::getCount);
       }
     }
+    return lines;
+  }
 
-    return coverageMap;
+  /**
+   * Return the coverage of the given source, or {@code null} if it was not
+   * loaded.
+   */
+  public long[] getLines(final Source source) {
+    SourceCoverage sc = statements.get(source);
+    if (sc == null || sc.lineCount == 0) {
+      return null;
+    }
+    long[] lines = sc.newLines();
+    sc.addTo(lines, this::getCount);
+    return lines;
   }
 
-  private void processCoverage(final long counterVal,
-      final SourceSection sourceSection, final Map<String, Long[]> coverageMap) {
-    Long[] array;
-    Source s = sourceSection.getSource();
-    String path;
-    if (s.getPath() != null) {
-      // make sure we skip the protocol, should be the file protocol,
-      // don't support anything else for gcov files
-      URI u = URI.create(s.getPath());
-      path = u.getPath();
-    } else {
-      path = s.getName();
+  /**
+   * Return the version of the coverage. It grows by one for each line that
+   * is executed for the first time.
+   */
+  public long getVersion() {
+    return log.getVersion();
+  }
+
+  /**
+   * Return the lines that were executed for the first time after
+   * {@code version}, together with the current version to pass to the next
+   * call. The cost is proportional to the number of new lines.
+   */
+  public CoverageUpdate getNewlyCoveredLines(final long version) {
+    return log.since(version);
+  }
+
+  /**
+   * Return all lines covered so far, as of a single version. Unlike
+   * {@link #getCoverageMap()}, this does not read any counters.
+   */
+  public CoverageUpdate getCoveredLines() {
+    return log.since(0);
+  }
+
+  /**
+   * Return the execution counts of the functions per file, if they are
+   * counted, see {@link #GRANULARITY}.
+   */
+  public Map<String, List<FunctionRecord>> getFunctionCoverage() {
+    Map<String, List<FunctionRecord>> result = new HashMap<>();
+    for (SourceCoverage source : statements.values()) {
+      if (source.hasFunctions()) {
+        source.addFunctionsTo(
+            result.computeIfAbsent(source.path, p -> new ArrayList<>()),
+            c -> mode == CountingMode.HIT ? Math.min(c.getCounter(), 1) : c.getCounter());
+      }
     }
+    return result;
+  }
 
-    if (coverageMap.containsKey(path)) {
-      array = coverageMap.get(path);
-    } else if (s.getLineCount() == 0) {
-      return;
-    } else {
-      array = new Long[s.getLineCount()];
-      coverageMap.put(path, array);
+  /**
+   * Return the outcome counts of the branch sites per file, if they are
+   * counted, see {@link #BRANCHES}.
+   */
+  public Map<String, List<BranchRecord>> getBranchCoverage() {
+    Map<String, List<BranchRecord>> result = new HashMap<>();
+    for (SourceCoverage source : statements.values()) {
+      if (source.hasBranches()) {
+        source.addBranchesTo(
+            result.computeIfAbsent(source.path, p -> new ArrayList<>()),
+            c -> mode == CountingMode.HIT ? Math.min(c.getCounter(), 1) : c.getCounter());
+      }
     }
+    result.values().removeIf(List::isEmpty);
+    return result;
+  }
 
-    int line = sourceSection.getStartLine() - 1;
-    updateLine(array, line, counterVal);
+  /**
+   * Return the number of calls between each pair of functions, if they are
+   * counted, see {@link #CALL_EDGES}.
+   */
+  public List<CallEdge> getCallEdges() {
+    return callEdges.getEdges(mode == CountingMode.HIT);
   }
 
-  private static void updateLine(final Long[] arr, final int line, final long cntVal) {
-    if (arr[line] == null) {
-      arr[line] = cntVal;
-    } else {
-      arr[line] = Math.max(cntVal, arr[line]);
+  long getCount(final Counter counter) {
+    switch (mode) {
+      case HIT:
+        return Math.min(counter.getCounter(), 1);
+      case SAMPLE:
+        return ((SampledCounter) counter).getEstimate(sampleInterval);
+      default:
+        return counter.getCounter();
     }
   }
 
-  public List<SourceSection> getCodeNotExecuted() {
-    List<SourceSection> allSourceSections = new ArrayList<>();
+  /**
+   * In {@link CountingMode#SAMPLE}, return for each line the half width of an
+   * approximately 95% confidence interval around the estimate reported by
+   * {@link #getCoverageMap(Map)}. In the other modes, counts are exact and
+   * all bounds are 0.
+   */
+  public Map<String, long[]> getSamplingErrorBounds() {
+    if (mode != CountingMode.SAMPLE) {
+      return collectLines(c -> 0);
+    }
+    return collectLines(c -> ((SampledCounter) c).getErrorBound(sampleInterval));
+  }
 
-    for (RootNode root : rootNodes) {
-      Map<SourceSection, Set<Class<?>>> sourceSectionsAndTags = new HashMap<>();
+  private Map<String, long[]> collectLines(final ToLongFunction<Counter> count) {
+    Map<String, long[]> coverageMap = new HashMap<>();
+    for (SourceCoverage source : statements.values()) {
+      long[] lines = getLines(coverageMap, source);
+      if (lines != null) {
+        source.addTo(lines, count);
+      }
+    }
+    return coverageMap;
+  }
 
-      root.accept(node -> {
-        Set<Class<?>> tags = instrumenter.queryTags(node);
+  private static long[] getLines(final Map<String, long[]> coverageMap,
+      final SourceCoverage source) {
+    if (source.lineCount == 0) {
+      return null;
+    }
 
-        if (tags.contains(StatementTag.class)) {
-          if (sourceSectionsAndTags.containsKey(node.getSourceSection())) {
-            sourceSectionsAndTags.get(node.getSourceSection()).addAll(tags);
-          } else {
-            sourceSectionsAndTags.put(node.getSourceSection(),
-                new HashSet<>(tags));
-          }
-        }
-        return true;
-      });
+    long[] lines = coverageMap.get(source.path);
+    if (lines == null) {
+      lines = source.newLines();
+    } else {
+      lines = Gcov.ensureLength(lines, source.lineCount);
+    }
+    coverageMap.put(source.path, lines);
+    return lines;
+  }
+
+  /**
+   * Return a section for each line that contains statements, none of which
+   * was executed.
+   */
+  public List<SourceSection> getCodeNotExecuted() {
+    List<SourceSection> notExecuted = new ArrayList<>();
 
-      allSourceSections.addAll(sourceSectionsAndTags.keySet());
+    for (SourceCoverage source : statements.values()) {
+      if (source.lineCount == 0) {
+        continue;
+      }
+
+      BitSet lines = source.getLinesNotCovered();
+      for (int i = lines.nextSetBit(0); i >= 0; i = lines.nextSetBit(i + 1)) {
+        notExecuted.add(source.source.createSection(i + 1));
+      }
     }
 
-    return allSourceSections;
+    return notExecuted;
   }
 
   /**
+   * Set the file to which the coverage is written on dispose. Existing data
+   * in the file is merged with the new coverage according to
+   * {@link #OUTPUT_MERGE}. The file may be shared by several processes,
+   * which update it one after another under a file lock. Files ending in
+   * {@link BinaryCoverage#EXTENSION} use the binary format, all others use
+   * Gcov text.
+   *
+   * <p>A {@link DeltaLog} left next to the file by a process that did not
+   * shut down properly is folded into the file first. If
+   * {@link #SNAPSHOT_INTERVAL} is set, snapshots are appended to the delta
+   * log from now on.
+   *
    * @param file, i.e., path to the file
    */
   public void setOutputFile(final String file) throws FileNotFoundException, IOException {
     this.file = file;
     File f = new File(file);
-    if (f.exists()) {
-      coverage = Gcov.load(new FileInputStream(f));
-    } else {
-      coverage = new HashMap<>();
+    DeltaLog.compact(f.toPath());
+
+    if (snapshotter != null) {
+      snapshotter.stop(false);
+      snapshotter = null;
     }
+    if (snapshotInterval > 0) {
+      snapshotter = new Snapshotter(this, env, f.toPath(), snapshotInterval);
+      snapshotter.start();
+    }
+  }
+
+  /** Return the number of snapshots taken so far. */
+  public long getSnapshotCount() {
+    return snapshotter == null ? 0 : snapshotter.getSnapshots();
+  }
+
+  /**
+   * Return the total time in nanoseconds the snapshot thread spent reading
+   * counters and writing the delta log.
+   */
+  public long getSnapshotTimeNanos() {
+    return snapshotter == null ? 0 : snapshotter.getTotalNanos();
+  }
+
+  /** Return the number of bytes appended to the delta log so far. */
+  public long getSnapshotBytesWritten() {
+    return snapshotter == null ? 0 : snapshotter.getBytesWritten();
+  }
+
+  /** Return the last error of the snapshot thread, or {@code null}. */
+  public IOException getSnapshotFailure() {
+    return snapshotter == null ? null : snapshotter.getFailure();
   }
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.Arrays;
+
+/**
+ * Records lines in the order in which they are executed for the first time.
+ * The version of the coverage is the number of lines recorded so far, so it
+ * only grows, and the lines covered since a version are simply the tail of
+ * the log.
+ */
+final class CoverageLog {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private SourceCoverage[] sources = new SourceCoverage[INITIAL_CAPACITY];
+  private int[]            lines   = new int[INITIAL_CAPACITY];
+  private int              size;
+
+  synchronized void add(final SourceCoverage source, final int line) {
+    if (size == lines.length) {
+      sources = Arrays.copyOf(sources, size * 2);
+      lines   = Arrays.copyOf(lines, size * 2);
+    }
+    sources[size] = source;
+    lines[size]   = line;
+    size += 1;
+  }
+
+  synchronized long getVersion() {
+    return size;
+  }
+
+  /** Return the lines recorded after {@code version}. */
+  synchronized CoverageUpdate since(final long version) {
+    if (version < 0) {
+      throw new IllegalArgumentException("Version must not be negative: " + version);
+    }
+
+    int from = (int) Math.min(version, size);
+    CoverageUpdate update = new CoverageUpdate(from, size);
+    for (int i = from; i < size; i += 1) {
+      update.add(sources[i].path, lines[i] + 1);
+    }
+    return update.sort();
+  }
+}
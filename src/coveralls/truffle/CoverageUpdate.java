@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The lines that were executed for the first time between two versions of
+ * the coverage, see {@link Coverage#getNewlyCoveredLines(long)}.
+ */
+public final class CoverageUpdate {
+  private final long fromVersion;
+  private final long version;
+
+  private final Map<String, int[]> lines = new HashMap<>();
+  private final Map<String, Integer> sizes = new HashMap<>();
+
+  CoverageUpdate(final long fromVersion, final long version) {
+    this.fromVersion = fromVersion;
+    this.version     = version;
+  }
+
+  void add(final String path, final int line) {
+    int[] l = lines.get(path);
+    int n = sizes.getOrDefault(path, 0);
+    if (l == null) {
+      l = new int[4];
+    } else if (n == l.length) {
+      l = Arrays.copyOf(l, n * 2);
+    }
+    l[n] = line;
+    lines.put(path, l);
+    sizes.put(path, n + 1);
+  }
+
+  CoverageUpdate sort() {
+    for (Entry<String, int[]> e : lines.entrySet()) {
+      int[] l = Arrays.copyOf(e.getValue(), sizes.get(e.getKey()));
+      Arrays.sort(l);
+      e.setValue(l);
+    }
+    sizes.clear();
+    return this;
+  }
+
+  /** The version this update starts from. */
+  public long getFromVersion() {
+    return fromVersion;
+  }
+
+  /** The version of the coverage this update brings a reader to. */
+  public long getVersion() {
+    return version;
+  }
+
+  /** The newly covered lines per file, 1-based and sorted. */
+  public Map<String, int[]> getLines() {
+    return Collections.unmodifiableMap(lines);
+  }
+
+  public boolean isEmpty() {
+    return lines.isEmpty();
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+/**
+ * Selects which parts of the code get probes, see {@link Coverage#GRANULARITY}.
+ */
+public enum Granularity {
+  /** Count the executions of each statement. */
+  STATEMENT,
+
+  /**
+   * Count only the executions of each function, with one probe per root
+   * node, so a call runs one probe instead of one per statement. The
+   * results are reported as {@code function:} records.
+   */
+  FUNCTION,
+
+  /** Count both statements and functions. */
+  ALL;
+
+  boolean hasStatements() {
+    return this != FUNCTION;
+  }
+
+  boolean hasFunctions() {
+    return this != STATEMENT;
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import com.oracle.truffle.api.CompilerDirectives;
+import com.oracle.truffle.api.CompilerDirectives.CompilationFinal;
+import com.oracle.truffle.api.frame.VirtualFrame;
+import com.oracle.truffle.api.instrumentation.ExecutionEventNode;
+
+/**
+ * Records only the first execution of a statement. Once hit, {@link #hit} is
+ * a compilation constant, so compiled code contains no trace of the probe.
+ */
+class HitOnceNode extends ExecutionEventNode {
+  protected final Counter counter;
+
+  @CompilationFinal private boolean hit;
+
+  HitOnceNode(final Counter counter) {
+    this.counter = counter;
+    this.hit = counter.getCounter() > 0;
+  }
+
+  @Override
+  protected void onEnter(final VirtualFrame frame) {
+    if (!hit) {
+      CompilerDirectives.transferToInterpreterAndInvalidate();
+      hit = true;
+      counter.inc();
+      counter.source.markChanged();
+      counter.markCovered();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import gcov.CounterRegion;
+
+/**
+ * A counter that is also persisted in a {@link CounterRegion}, so that the
+ * operating system keeps its count even if the process is killed. It counts
+ * on the heap like any {@link Counter}, which keeps increments in compiled
+ * code, and {@link RegionFlusher} copies the count into the region.
+ */
+final class MappedCounter extends Counter {
+  private final CounterRegion region;
+  private final int           offset;
+
+  MappedCounter(final int line, final CounterRegion region, final int offset) {
+    super(line);
+    this.region = region;
+    this.offset = offset;
+  }
+
+  /** Copy the count into the region. */
+  void flush() {
+    region.set(offset, getCounter());
+  }
+}
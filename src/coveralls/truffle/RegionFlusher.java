@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import gcov.CounterRegion;
+
+/**
+ * Periodically copies the counts of {@link MappedCounter}s into their
+ * {@link CounterRegion} on a background thread. Only sources that were
+ * executed since the previous flush are visited, see
+ * {@link SourceCoverage#markChanged()}. If the process is killed, the counts
+ * of at most the last interval are lost.
+ */
+final class RegionFlusher implements Runnable {
+  private final Coverage coverage;
+  private final int      trackerId;
+
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Start flushing every {@code intervalMillis} on a thread made by
+   * {@code threads}, which is a system thread of the instrument's
+   * environment.
+   */
+  RegionFlusher(final Coverage coverage, final ThreadFactory threads,
+      final long intervalMillis) {
+    this.coverage  = coverage;
+    this.trackerId = coverage.allocateTrackerId();
+
+    ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = threads.newThread(r);
+      t.setName("Coverage Region Flush");
+      t.setDaemon(true);
+      return t;
+    });
+    e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    e.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    this.executor = e;
+  }
+
+  @Override
+  public void run() {
+    for (SourceCoverage source : coverage.getSources()) {
+      if (source.takeChanged(trackerId)) {
+        source.flushMappedCounters();
+      }
+    }
+  }
+
+  /** Stop flushing, and copy all counts a last time. */
+  void stop() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (SourceCoverage source : coverage.getSources()) {
+      source.flushMappedCounters();
+    }
+    coverage.releaseTrackerId(trackerId);
+  }
+}
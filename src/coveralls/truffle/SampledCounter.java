@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+/**
+ * A counter for {@link CountingMode#SAMPLE}, which holds the number of
+ * samples taken for a statement, and whether it was executed at all.
+ */
+class SampledCounter extends Counter {
+  private volatile boolean executed;
+
+  SampledCounter(final int line) {
+    super(line);
+  }
+
+  void markExecuted() {
+    executed = true;
+  }
+
+  boolean wasExecuted() {
+    return executed;
+  }
+
+  /**
+   * Estimate the number of executions. An executed statement is reported
+   * with at least 1, even if it was never sampled.
+   */
+  long getEstimate(final int interval) {
+    long estimate = getCounter() * interval;
+    if (estimate == 0 && executed) {
+      return 1;
+    }
+    return estimate;
+  }
+
+  /**
+   * Half width of an approximately 95% confidence interval for
+   * {@link #getEstimate(int)}. Each of the n executions is sampled with
+   * probability p = 1/interval, see {@link SamplingNode}, so the number of
+   * samples is binomial with standard deviation sqrt(n p (1 - p)). With
+   * n p estimated by the samples, and the factor 1 - p left out, which
+   * only widens the bound, this is 1.96 * interval * sqrt(samples).
+   * Statements with no samples are bounded by one interval.
+   */
+  long getErrorBound(final int interval) {
+    if (!executed) {
+      return 0;
+    }
+    long samples = Math.max(getCounter(), 1);
+    return (long) Math.ceil(1.96 * interval * Math.sqrt(samples));
+  }
+}
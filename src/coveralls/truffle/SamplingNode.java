@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.util.SplittableRandom;
+
+import com.oracle.truffle.api.CompilerDirectives;
+import com.oracle.truffle.api.CompilerDirectives.CompilationFinal;
+import com.oracle.truffle.api.CompilerDirectives.TruffleBoundary;
+import com.oracle.truffle.api.ContextThreadLocal;
+import com.oracle.truffle.api.frame.VirtualFrame;
+import com.oracle.truffle.api.instrumentation.ExecutionEventNode;
+
+/**
+ * Counts on average one in n statement executions of a thread. The decision
+ * is made with a per-thread countdown shared by all probes, which is cheaper
+ * than drawing a random number per execution. The countdown restarts with a
+ * geometrically distributed length, so each execution is sampled
+ * independently with probability 1/n, even if a loop body is as long as the
+ * interval, and the samples of a statement are binomially distributed, as
+ * {@link SampledCounter#getErrorBound(int)} assumes.
+ */
+class SamplingNode extends ExecutionEventNode {
+
+  /** Per-thread state, shared by all {@link SamplingNode}s of a thread. */
+  static final class Countdown {
+    private final SplittableRandom random;
+    private final double logSkip;
+    private int remaining;
+
+    Countdown(final int interval) {
+      this(interval, new SplittableRandom());
+    }
+
+    Countdown(final int interval, final SplittableRandom random) {
+      this.random    = random;
+      this.logSkip   = Math.log1p(-1.0 / interval);
+      this.remaining = next();
+    }
+
+    /** Count down one execution, and return whether it is sampled. */
+    boolean tick() {
+      remaining -= 1;
+      if (remaining > 0) {
+        return false;
+      }
+      remaining = next();
+      return true;
+    }
+
+    /** The number of executions up to and including the next sample. */
+    @TruffleBoundary
+    private int next() {
+      if (logSkip == Double.NEGATIVE_INFINITY) {
+        return 1;
+      }
+      double skip = Math.floor(Math.log(1.0 - random.nextDouble()) / logSkip);
+      return (int) Math.min(skip + 1, Integer.MAX_VALUE);
+    }
+  }
+
+  protected final SampledCounter counter;
+
+  private final ContextThreadLocal<Countdown> countdown;
+
+  @CompilationFinal private boolean executed;
+
+  SamplingNode(final SampledCounter counter,
+      final ContextThreadLocal<Countdown> countdown) {
+    this.counter   = counter;
+    this.countdown = countdown;
+    this.executed  = counter.wasExecuted();
+  }
+
+  @Override
+  protected void onEnter(final VirtualFrame frame) {
+    if (!executed) {
+      CompilerDirectives.transferToInterpreterAndInvalidate();
+      executed = true;
+      counter.markExecuted();
+      counter.markCovered();
+      counter.source.markChanged();
+    }
+
+    if (countdown.get().tick()) {
+      counter.inc();
+      counter.source.markChanged();
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.oracle.truffle.api.instrumentation.TruffleInstrument.Env;
+
+import gcov.DeltaLog;
+
+/**
+ * Periodically reads the counters on a background thread and passes the
+ * lines that changed since the previous snapshot to a {@link Sink}, for
+ * instance the {@link DeltaLog} of the output file. Guest threads are not
+ * paused, the counters are simply read while they run, and only the sources
+ * that were executed since the previous snapshot are read, see
+ * {@link ChangeTracker}.
+ *
+ * <p>To bound its overhead, the delay until the next snapshot is at least
+ * {@link #MAX_OVERHEAD_FACTOR} times the duration of the previous one. The
+ * delta log is folded into the output file once it is larger than
+ * {@link #MAX_DELTA_LOG_BYTES}.
+ */
+final class Snapshotter implements Runnable {
+  /** Snapshots may use at most 1/20 of the wall clock time. */
+  private static final int MAX_OVERHEAD_FACTOR = 20;
+
+  static final long MAX_DELTA_LOG_BYTES = 16L << 20;
+
+  /** Receives the lines that changed, with their current counts. */
+  interface Sink {
+    /** Returns the number of bytes written. */
+    long write(Map<String, long[]> changed) throws IOException;
+  }
+
+  private final ChangeTracker changes;
+  private final Sink          sink;
+  private final long          intervalMillis;
+
+  private final ScheduledExecutorService executor;
+
+  private volatile long snapshots;
+  private volatile long totalNanos;
+  private volatile long bytesWritten;
+  private volatile IOException failure;
+
+  Snapshotter(final Coverage coverage, final Env env, final Path outputFile,
+      final long intervalMillis) {
+    this(coverage, env,
+        delta -> DeltaLog.append(delta, outputFile, MAX_DELTA_LOG_BYTES), intervalMillis);
+  }
+
+  Snapshotter(final Coverage coverage, final Env env, final Sink sink,
+      final long intervalMillis) {
+    this.changes        = new ChangeTracker(coverage);
+    this.sink           = sink;
+    this.intervalMillis = intervalMillis;
+
+    ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = env.createSystemThread(r);
+      t.setName("Coverage Snapshots");
+      t.setDaemon(true);
+      return t;
+    });
+    e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    this.executor = e;
+  }
+
+  void start() {
+    executor.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop taking snapshots, waiting for a running one to complete. With
+   * {@code flush}, a final snapshot is then taken on the calling thread.
+   */
+  void stop(final boolean flush) throws IOException {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      if (flush) {
+        snapshot();
+      }
+    } finally {
+      changes.close();
+    }
+  }
+
+  @Override
+  public void run() {
+    long start = System.nanoTime();
+    try {
+      snapshot();
+    } catch (IOException e) {
+      failure = e;
+    }
+    long duration = System.nanoTime() - start;
+
+    snapshots += 1;
+    totalNanos += duration;
+
+    if (!executor.isShutdown()) {
+      long delay = Math.max(intervalMillis,
+          TimeUnit.NANOSECONDS.toMillis(duration) * MAX_OVERHEAD_FACTOR);
+      executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void snapshot() throws IOException {
+    Map<String, long[]> delta = changes.changed();
+    if (!delta.isEmpty()) {
+      bytesWritten += sink.write(delta);
+    }
+  }
+
+  long getSnapshots() {
+    return snapshots;
+  }
+
+  long getTotalNanos() {
+    return totalNanos;
+  }
+
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  IOException getFailure() {
+    return failure;
+  }
+}
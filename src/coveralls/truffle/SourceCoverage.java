@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+import com.oracle.truffle.api.source.Source;
+import com.oracle.truffle.api.source.SourceSection;
+
+import gcov.BranchRecord;
+import gcov.FunctionRecord;
+import gcov.Gcov;
+
+/**
+ * The statement counters of one {@link Source}.
+ *
+ * <p>Each counter refers to its line by index, and counters are found by the
+ * start index and length of their source section in a small open-addressing
+ * table. Reading the coverage writes directly into a primitive array of line
+ * slots, see {@link #addTo(long[], ToLongFunction)}.
+ *
+ * <p>The lines that contain statements are recorded in a bit set when the
+ * statements are loaded, so that the coverage of code that never ran can be
+ * determined without keeping or walking the ASTs. A second bit set records
+ * the lines that were executed, see {@link #markCovered(int)}.
+ *
+ * <p>Probes call {@link #markChanged()} after they increment a counter, so
+ * that {@link ChangeTracker}s only read the sources that were executed.
+ */
+final class SourceCoverage {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final VarHandle UNCHANGED;
+
+  static {
+    try {
+      UNCHANGED = MethodHandles.lookup().findVarHandle(
+          SourceCoverage.class, "unchanged", int.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  final Source source;
+  final String path;
+  final int    lineCount;
+
+  /** Id of the source in the {@link gcov.CounterRegion}, or -1. */
+  int regionId = -1;
+
+  private final BitSet statementLines;
+  private final BitSet coveredLines;
+
+  private final CoverageLog log;
+
+  /** Function counters by {@link #key(SourceSection)}, there are only few. */
+  private final Map<Long, FunctionCounter> functions = new LinkedHashMap<>();
+
+  /** Branch sites by {@link #key(SourceSection)}. */
+  private final Map<Long, BranchCounter> branches = new HashMap<>();
+
+  private long[]    keys;
+  private Counter[] counters;
+  private int       size;
+
+  /**
+   * Bit i is set while {@link ChangeTracker} i has read all counts of this
+   * source. Accessed with {@link #UNCHANGED}.
+   */
+  private int unchanged;
+
+  SourceCoverage(final Source source, final CoverageLog log) {
+    this.source    = source;
+    this.path      = getPath(source);
+    this.lineCount = source.getLineCount();
+    this.log       = log;
+    this.statementLines = new BitSet(lineCount);
+    this.coveredLines   = new BitSet(lineCount);
+    this.keys      = new long[INITIAL_CAPACITY];
+    this.counters  = new Counter[INITIAL_CAPACITY];
+  }
+
+  static String getPath(final Source s) {
+    if (s.getPath() != null) {
+      // make sure we skip the protocol, should be the file protocol,
+      // don't support anything else for gcov files
+      URI u = URI.create(s.getPath());
+      return u.getPath();
+    } else {
+      return s.getName();
+    }
+  }
+
+  private static long key(final SourceSection section) {
+    return ((long) section.getCharIndex() << 32) | section.getCharLength();
+  }
+
+  private static int hash(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /** Record that the line of the given statement contains code. */
+  synchronized void addStatement(final SourceSection section) {
+    statementLines.set(section.getStartLine() - 1);
+  }
+
+  /**
+   * Record that a statement on the given line was executed. The first time
+   * for each line, the line is added to the {@link CoverageLog}.
+   */
+  synchronized void markCovered(final int line) {
+    if (!coveredLines.get(line)) {
+      coveredLines.set(line);
+      log.add(this, line);
+    }
+  }
+
+  /**
+   * Record that a counter of this source changed. Only the first call after
+   * a {@link ChangeTracker} read the source writes, later ones are a single
+   * read. The read is opaque, so that compiled loops see the trackers.
+   */
+  void markChanged() {
+    if ((int) UNCHANGED.getOpaque(this) != 0) {
+      UNCHANGED.setOpaque(this, 0);
+    }
+  }
+
+  /**
+   * Return whether a counter changed since the tracker with the given id
+   * last called this method, and mark the source as read by it.
+   */
+  boolean takeChanged(final int tracker) {
+    int bit = 1 << tracker;
+    return ((int) UNCHANGED.getAndBitwiseOr(this, bit) & bit) == 0;
+  }
+
+  /** Mark the source as changed for a tracker that reuses an old id. */
+  void resetChanged(final int tracker) {
+    UNCHANGED.getAndBitwiseAnd(this, ~(1 << tracker));
+  }
+
+  /** Return the lines that contain statements, none of which was executed. */
+  synchronized BitSet getLinesNotCovered() {
+    BitSet lines = (BitSet) statementLines.clone();
+    lines.andNot(coveredLines);
+    return lines;
+  }
+
+  /**
+   * Return the counter for the given statement, creating it with the given
+   * factory, which receives the 0-based line index, if it does not exist yet.
+   */
+  synchronized Counter getOrCreate(final SourceSection section,
+      final IntFunction<Counter> factory) {
+    long key = key(section);
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (counters[i] != null) {
+      if (keys[i] == key) {
+        return counters[i];
+      }
+      i = (i + 1) & mask;
+    }
+
+    Counter c = factory.apply(section.getStartLine() - 1);
+    c.source = this;
+    keys[i] = key;
+    counters[i] = c;
+    size += 1;
+    if (size * 2 > keys.length) {
+      grow();
+    }
+    return c;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    Counter[] oldCounters = counters;
+    keys = new long[oldKeys.length * 2];
+    counters = new Counter[oldKeys.length * 2];
+
+    int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j += 1) {
+      if (oldCounters[j] != null) {
+        int i = hash(oldKeys[j]) & mask;
+        while (counters[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        counters[i] = oldCounters[j];
+      }
+    }
+  }
+
+  /** Copy the counts of the {@link MappedCounter}s into their region. */
+  synchronized void flushMappedCounters() {
+    for (Counter c : counters) {
+      if (c instanceof MappedCounter) {
+        ((MappedCounter) c).flush();
+      }
+    }
+  }
+
+  /** Return the counter for the function with the given root section. */
+  synchronized FunctionCounter getOrCreateFunction(final SourceSection section,
+      final String name) {
+    return functions.computeIfAbsent(key(section), k -> {
+      FunctionCounter f = new FunctionCounter(section.getStartLine() - 1, name);
+      f.source = this;
+      return f;
+    });
+  }
+
+  synchronized boolean hasFunctions() {
+    return !functions.isEmpty();
+  }
+
+  /** Add a record with the count of each function to {@code records}. */
+  synchronized void addFunctionsTo(final List<FunctionRecord> records,
+      final ToLongFunction<Counter> count) {
+    for (FunctionCounter f : functions.values()) {
+      records.add(new FunctionRecord(f.line + 1, count.applyAsLong(f), f.name));
+    }
+  }
+
+  /** Return the counters for the branch site with the given section. */
+  synchronized BranchCounter getOrCreateBranch(final SourceSection section) {
+    return branches.computeIfAbsent(key(section),
+        k -> new BranchCounter(section.getStartLine() - 1, section.getStartColumn()));
+  }
+
+  synchronized boolean hasBranches() {
+    return !branches.isEmpty();
+  }
+
+  /**
+   * Add the taken and not-taken records of each branch site that produced a
+   * boolean, or never ran, to {@code records}, with the start column as block
+   * number. Sites starting at the same column are combined.
+   */
+  synchronized void addBranchesTo(final List<BranchRecord> records,
+      final ToLongFunction<Counter> count) {
+    List<BranchCounter> sites = new ArrayList<>(branches.values());
+    sites.sort(Comparator.comparingInt((BranchCounter b) -> b.line)
+        .thenComparingInt(b -> b.column));
+
+    int i = 0;
+    while (i < sites.size()) {
+      BranchCounter first = sites.get(i);
+      long taken = 0;
+      long notTaken = 0;
+      boolean notBoolean = false;
+      for (; i < sites.size() && sites.get(i).line == first.line
+          && sites.get(i).column == first.column; i += 1) {
+        taken    += count.applyAsLong(sites.get(i).taken);
+        notTaken += count.applyAsLong(sites.get(i).notTaken);
+        notBoolean |= sites.get(i).notBoolean;
+      }
+
+      if (taken > 0 || notTaken > 0 || !notBoolean) {
+        records.add(new BranchRecord(first.line + 1, first.column, 0, taken));
+        records.add(new BranchRecord(first.line + 1, first.column, 1, notTaken));
+      }
+    }
+  }
+
+  /**
+   * Write the count of each statement into its line slot. Slots of lines
+   * with multiple statements get the maximum, and lines with statements that
+   * never ran get 0.
+   */
+  synchronized void addTo(final long[] lines, final ToLongFunction<Counter> count) {
+    for (int i = statementLines.nextSetBit(0); i >= 0; i = statementLines.nextSetBit(i + 1)) {
+      Gcov.updateLine(lines, i, 0);
+    }
+    for (Counter c : counters) {
+      if (c != null) {
+        Gcov.updateLine(lines, c.line, count.applyAsLong(c));
+      }
+    }
+  }
+
+  /** Create a new coverage array for this source, with no lines marked as code. */
+  long[] newLines() {
+    return Gcov.newLines(lineCount);
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2016 Carmen Torres López, Stefan Marr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package coveralls.truffle;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.oracle.truffle.api.instrumentation.SourceSectionFilter.SourcePredicate;
+import com.oracle.truffle.api.source.Source;
+
+/**
+ * Selects the sources to instrument by glob patterns on their path, as
+ * reported in the coverage files. A source is instrumented if it matches any
+ * include pattern, or there are none, and matches no exclude pattern.
+ */
+final class SourceFilter implements SourcePredicate {
+  private final List<PathMatcher> includes;
+  private final List<PathMatcher> excludes;
+
+  private SourceFilter(final List<PathMatcher> includes, final List<PathMatcher> excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * Create a filter from comma-separated glob patterns, or return
+   * {@code null} if both are empty.
+   */
+  static SourceFilter create(final String includes, final String excludes) {
+    List<PathMatcher> in = parse(includes);
+    List<PathMatcher> ex = parse(excludes);
+    if (in.isEmpty() && ex.isEmpty()) {
+      return null;
+    }
+    return new SourceFilter(in, ex);
+  }
+
+  /** Split a comma-separated option value, ignoring empty elements. */
+  static List<String> split(final String list) {
+    List<String> result = new ArrayList<>();
+    for (String s : list.split(",")) {
+      if (!s.trim().isEmpty()) {
+        result.add(s.trim());
+      }
+    }
+    return result;
+  }
+
+  private static List<PathMatcher> parse(final String globs) {
+    List<PathMatcher> matchers = new ArrayList<>();
+    for (String glob : split(globs)) {
+      matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+    return matchers;
+  }
+
+  @Override
+  public boolean test(final Source source) {
+    Path path;
+    try {
+      path = Paths.get(SourceCoverage.getPath(source));
+    } catch (InvalidPathException e) {
+      return includes.isEmpty();
+    }
+
+    return (includes.isEmpty() || matchesAny(includes, path))
+        && !matchesAny(excludes, path);
+  }
+
+  private static boolean matchesAny(final List<PathMatcher> matchers, final Path path) {
+    for (PathMatcher m : matchers) {
+      if (m.matches(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
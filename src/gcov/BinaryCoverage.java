@@ -0,0 +1,368 @@
+package gcov;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary encoding of coverage data.
+ *
+ * <p>The file starts with a fixed header:
+ * <pre>
+ *   magic    4 bytes  "TCOV"
+ *   version  1 byte
+ *   flags    1 byte   bit 0: hit-only
+ *   reserved 2 bytes
+ *   length   8 bytes  length of the payload
+ *   checksum 4 bytes  CRC32 of the payload
+ * </pre>
+ * The payload is a table of all paths, followed by the coverage of each
+ * file: the length of its line array, the number of lines with code, the
+ * line numbers of those lines delta-encoded as varints, and then either
+ * one varint count per line or, in hit-only mode, a bitmap with one bit per
+ * line.
+ */
+public final class BinaryCoverage {
+
+  public static final String EXTENSION = ".covb";
+
+  static final int  VERSION = 1;
+  static final byte FLAG_HIT_ONLY = 1;
+
+  private static final byte[] MAGIC = {'T', 'C', 'O', 'V'};
+  private static final int HEADER_SIZE = 20;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Longest varint encoding of a long. */
+  private static final int MAX_VARINT = 10;
+
+  private BinaryCoverage() { }
+
+  /**
+   * Write the coverage data to {@code file}, replacing it atomically, see
+   * {@link Gcov#write(Map, Path)}.
+   *
+   * @param hitOnly only record whether a line was executed, not how often
+   */
+  public static void write(final Map<String, long[]> coverageMap, final Path file,
+      final boolean hitOnly) throws IOException {
+    Path target = file.toAbsolutePath();
+    Path tmp = Gcov.createTempFile(target);
+    try {
+      try (FileChannel channel = FileChannel.open(tmp,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        write(coverageMap, channel, hitOnly);
+        channel.force(true);
+      }
+      Gcov.moveAtomically(tmp, target);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+  /**
+   * Encode the coverage data into {@code channel}, which needs to be
+   * positioned at its start. The header is written last.
+   */
+  public static void write(final Map<String, long[]> coverageMap,
+      final FileChannel channel, final boolean hitOnly) throws IOException {
+    Writer w = new Writer(channel);
+    w.buffer.put(new byte[HEADER_SIZE]);
+    w.headerPending = true;
+
+    List<Entry<String, long[]>> files = new ArrayList<>(coverageMap.entrySet());
+
+    w.putVarint(files.size());
+    for (Entry<String, long[]> e : files) {
+      byte[] path = e.getKey().getBytes(StandardCharsets.UTF_8);
+      w.putVarint(path.length);
+      w.put(path);
+    }
+
+    for (Entry<String, long[]> e : files) {
+      writeFile(w, e.getValue(), hitOnly);
+    }
+    w.flush();
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(MAGIC);
+    header.put((byte) VERSION);
+    header.put(hitOnly ? FLAG_HIT_ONLY : 0);
+    header.putShort((short) 0);
+    header.putLong(w.payloadLength);
+    header.putInt((int) w.crc.getValue());
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+  }
+
+  private static void writeFile(final Writer w, final long[] lines,
+      final boolean hitOnly) throws IOException {
+    int numCode = 0;
+    for (long l : lines) {
+      if (l != Gcov.NO_CODE) {
+        numCode += 1;
+      }
+    }
+
+    w.putVarint(lines.length);
+    w.putVarint(numCode);
+
+    int last = 0;
+    for (int i = 0; i < lines.length; i += 1) {
+      if (lines[i] != Gcov.NO_CODE) {
+        w.putVarint(i + 1 - last);
+        last = i + 1;
+      }
+    }
+
+    if (hitOnly) {
+      int bits = 0;
+      int numBits = 0;
+      for (long l : lines) {
+        if (l != Gcov.NO_CODE) {
+          if (l > 0) {
+            bits |= 1 << numBits;
+          }
+          numBits += 1;
+          if (numBits == 8) {
+            w.put((byte) bits);
+            bits = 0;
+            numBits = 0;
+          }
+        }
+      }
+      if (numBits > 0) {
+        w.put((byte) bits);
+      }
+    } else {
+      for (long l : lines) {
+        if (l != Gcov.NO_CODE) {
+          if (l < 0) {
+            throw new IllegalArgumentException("Negative counts are not supported: " + l);
+          }
+          w.putVarint(l);
+        }
+      }
+    }
+  }
+
+  /** Buffers the payload, and keeps track of its length and checksum. */
+  private static final class Writer {
+    private final FileChannel channel;
+    private final ByteBuffer  buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32       crc    = new CRC32();
+
+    private long    payloadLength;
+    private boolean headerPending;
+
+    Writer(final FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void put(final byte b) throws IOException {
+      ensure(1);
+      buffer.put(b);
+    }
+
+    void put(final byte[] bytes) throws IOException {
+      int offset = 0;
+      while (offset < bytes.length) {
+        ensure(1);
+        int length = Math.min(buffer.remaining(), bytes.length - offset);
+        buffer.put(bytes, offset, length);
+        offset += length;
+      }
+    }
+
+    void putVarint(final long value) throws IOException {
+      ensure(MAX_VARINT);
+      long v = value;
+      while ((v & ~0x7FL) != 0) {
+        buffer.put((byte) ((v & 0x7F) | 0x80));
+        v >>>= 7;
+      }
+      buffer.put((byte) v);
+    }
+
+    private void ensure(final int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      int payloadStart = headerPending ? HEADER_SIZE : 0;
+      headerPending = false;
+      crc.update(buffer.array(), payloadStart, buffer.limit() - payloadStart);
+      payloadLength += buffer.limit() - payloadStart;
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Whether {@code file} is a binary coverage file that only records which
+   * lines were executed. Missing and other files are not.
+   */
+  public static boolean isHitOnly(final Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 2);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        continue;
+      }
+    }
+    if (header.hasRemaining()) {
+      return false;
+    }
+    header.flip();
+    for (byte b : MAGIC) {
+      if (header.get() != b) {
+        return false;
+      }
+    }
+    header.get();
+    return (header.get() & FLAG_HIT_ONLY) != 0;
+  }
+
+  /** Load a binary coverage file by memory-mapping it. */
+  public static Map<String, long[]> load(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Coverage files larger than 2GB are not supported: " + file);
+      }
+      return load(channel.map(MapMode.READ_ONLY, 0, size));
+    }
+  }
+
+  /** Decode the remaining bytes of {@code data}. */
+  public static Map<String, long[]> load(final ByteBuffer data) throws IOException {
+    ByteBuffer in = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+    if (in.remaining() < HEADER_SIZE) {
+      throw new IOException("Not a binary coverage file: header is truncated");
+    }
+    for (byte b : MAGIC) {
+      if (in.get() != b) {
+        throw new IOException("Not a binary coverage file: wrong magic number");
+      }
+    }
+    int version = in.get();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary coverage version: " + version);
+    }
+    boolean hitOnly = (in.get() & FLAG_HIT_ONLY) != 0;
+    in.getShort();
+    long length = in.getLong();
+    int checksum = in.getInt();
+
+    if (length != in.remaining()) {
+      throw new IOException("Binary coverage file is truncated: expected "
+          + length + " bytes of data, but found " + in.remaining());
+    }
+    CRC32 crc = new CRC32();
+    crc.update(in.duplicate());
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Binary coverage file is corrupted: checksum mismatch");
+    }
+
+    try {
+      int numFiles = (int) getVarint(in);
+      String[] paths = new String[numFiles];
+      for (int i = 0; i < numFiles; i += 1) {
+        byte[] path = new byte[(int) getVarint(in)];
+        in.get(path);
+        paths[i] = new String(path, StandardCharsets.UTF_8);
+      }
+
+      Map<String, long[]> result = new HashMap<>();
+      for (String path : paths) {
+        result.put(path, readFile(in, hitOnly));
+      }
+      return result;
+    } catch (RuntimeException e) {
+      throw new IOException("Malformed binary coverage data", e);
+    }
+  }
+
+  private static long[] readFile(final ByteBuffer in, final boolean hitOnly) {
+    long[] lines = Gcov.newLines((int) getVarint(in));
+    int[] codeLines = new int[(int) getVarint(in)];
+
+    int last = 0;
+    for (int i = 0; i < codeLines.length; i += 1) {
+      last += (int) getVarint(in);
+      codeLines[i] = last - 1;
+    }
+
+    if (hitOnly) {
+      int bits = 0;
+      for (int i = 0; i < codeLines.length; i += 1) {
+        if (i % 8 == 0) {
+          bits = in.get();
+        }
+        lines[codeLines[i]] = (bits >> (i % 8)) & 1;
+      }
+    } else {
+      for (int line : codeLines) {
+        lines[line] = getVarint(in);
+      }
+    }
+    return lines;
+  }
+
+  private static long getVarint(final ByteBuffer in) {
+    long result = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = in.get();
+      result |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return result;
+  }
+
+  /**
+   * Convert between the binary format and the Gcov text format, so that
+   * binary files can be used with {@link coveralls.Report}.
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 3 || !("to-gcov".equals(args[0]) || "from-gcov".equals(args[0]))) {
+      // Checkstyle: stop
+      System.out.println("Usage: java gcov.BinaryCoverage to-gcov|from-gcov inFile outFile [--hit-only]");
+      // Checkstyle: resume
+      return;
+    }
+
+    Path in = Paths.get(args[1]);
+    Path out = Paths.get(args[2]);
+    if ("to-gcov".equals(args[0])) {
+      Gcov.write(load(in), out);
+    } else {
+      boolean hitOnly = args.length > 3 && "--hit-only".equals(args[3]);
+      write(Gcov.load(in), out, hitOnly);
+    }
+  }
+}
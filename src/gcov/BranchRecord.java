@@ -0,0 +1,47 @@
+package gcov;
+
+/**
+ * The execution count of one outcome of a branch, written as a
+ * {@code branch:<line>,<block>,<branch>,<count>} record in gcov files,
+ * following lcov's {@code BRDA} records and the Coveralls {@code branches}
+ * format. {@code block} numbers the branch sites of a line, and
+ * {@code branch} the outcomes of a site, 0 for taken and 1 for not taken.
+ */
+public final class BranchRecord {
+  /** 1-based line of the branch site. */
+  public final int  line;
+  public final int  block;
+  public final int  branch;
+  public final long count;
+
+  public BranchRecord(final int line, final int block, final int branch, final long count) {
+    this.line   = line;
+    this.block  = block;
+    this.branch = branch;
+    this.count  = count;
+  }
+
+  /** Whether {@code other} describes the same outcome of the same site. */
+  public boolean isSameBranch(final BranchRecord other) {
+    return line == other.line && block == other.block && branch == other.branch;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof BranchRecord)) {
+      return false;
+    }
+    BranchRecord r = (BranchRecord) o;
+    return isSameBranch(r) && count == r.count;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * (31 * line + block) + branch) + Long.hashCode(count);
+  }
+
+  @Override
+  public String toString() {
+    return "branch:" + line + "," + block + "," + branch + "," + count;
+  }
+}
@@ -0,0 +1,69 @@
+package gcov;
+
+/**
+ * The number of calls from one function to another. Functions are
+ * identified by path, 1-based first line, and name, as in
+ * {@link FunctionRecord}.
+ */
+public final class CallEdge {
+  public final String callerPath;
+  public final int    callerLine;
+  public final String caller;
+
+  public final String calleePath;
+  public final int    calleeLine;
+  public final String callee;
+
+  public final long count;
+
+  public CallEdge(final String callerPath, final int callerLine, final String caller,
+      final String calleePath, final int calleeLine, final String callee,
+      final long count) {
+    this.callerPath = callerPath;
+    this.callerLine = callerLine;
+    this.caller     = caller;
+    this.calleePath = calleePath;
+    this.calleeLine = calleeLine;
+    this.callee     = callee;
+    this.count      = count;
+  }
+
+  /** Return this edge with a different count. */
+  public CallEdge withCount(final long newCount) {
+    return new CallEdge(callerPath, callerLine, caller,
+        calleePath, calleeLine, callee, newCount);
+  }
+
+  /** Whether {@code other} connects the same functions. */
+  public boolean isSameEdge(final CallEdge other) {
+    return callerLine == other.callerLine && calleeLine == other.calleeLine
+        && caller.equals(other.caller) && callee.equals(other.callee)
+        && callerPath.equals(other.callerPath) && calleePath.equals(other.calleePath);
+  }
+
+  /** A string that is equal for edges between the same functions. */
+  String key() {
+    return callerPath + '\t' + callerLine + '\t' + caller + '\t'
+        + calleePath + '\t' + calleeLine + '\t' + callee;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof CallEdge)) {
+      return false;
+    }
+    CallEdge e = (CallEdge) o;
+    return isSameEdge(e) && count == e.count;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * key().hashCode() + Long.hashCode(count);
+  }
+
+  /** The record as written by {@link CallEdges}. */
+  @Override
+  public String toString() {
+    return key() + '\t' + count;
+  }
+}
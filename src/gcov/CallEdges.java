@@ -0,0 +1,83 @@
+package gcov;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes call edges. They are kept next to the coverage file, in
+ * {@code <coverageFile>.calls}, with one tab-separated record per line:
+ * caller path, line, and name, callee path, line, and name, and count.
+ */
+public final class CallEdges {
+
+  public static final String EXTENSION = ".calls";
+
+  private CallEdges() { }
+
+  /** The file for the call edges that belong to {@code coverageFile}. */
+  public static Path forCoverageFile(final Path coverageFile) {
+    return coverageFile.resolveSibling(coverageFile.getFileName() + EXTENSION);
+  }
+
+  public static List<CallEdge> load(final Path file) throws IOException {
+    List<CallEdge> edges = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] f = line.split("\t", -1);
+        if (f.length != 7) {
+          throw new IOException("Malformed call edge in " + file + ": " + line);
+        }
+        try {
+          edges.add(new CallEdge(f[0], Integer.parseInt(f[1]), f[2],
+              f[3], Integer.parseInt(f[4]), f[5], Long.parseLong(f[6])));
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed call edge in " + file + ": " + line, e);
+        }
+      }
+    }
+    return edges;
+  }
+
+  /** Write {@code edges} to {@code file}, replacing it atomically. */
+  public static void write(final List<CallEdge> edges, final Path file) throws IOException {
+    Path target = file.toAbsolutePath();
+    Path tmp = Gcov.createTempFile(target);
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        for (CallEdge e : edges) {
+          writer.write(e.toString());
+          writer.newLine();
+        }
+      }
+      Gcov.moveAtomically(tmp, target);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+  /**
+   * Merge {@code edges} into {@code file}, which may be shared with other
+   * processes, see {@link CoverageFormat#update}.
+   */
+  public static void update(final List<CallEdge> edges, final Path file,
+      final MergeMode mode) throws IOException {
+    OutputLock lock = OutputLock.acquire(file);
+    try {
+      List<CallEdge> existing = Files.exists(file) ? load(file) : new ArrayList<>();
+      write(mode.mergeCallEdges(existing, edges), file);
+    } finally {
+      lock.close();
+    }
+  }
+}
@@ -0,0 +1,363 @@
+package gcov;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local server that collects the coverage of many processes, so that they
+ * do not need to write and merge files themselves. Processes connect with a
+ * {@link CollectorClient} and push the lines that changed since their last
+ * push. The server keeps the counts of each connection in arrays per
+ * source, merges them into the total when the connection closes, and writes
+ * the total to the output file once, on {@link #close()}.
+ *
+ * <p>Each message is a type byte followed by its fields:
+ * <ul>
+ * <li>{@link #SOURCE}: int id, int line count, int length, UTF-8 path</li>
+ * <li>{@link #LINES}: int id, int n, then n times int line, long count</li>
+ * <li>{@link #FUNCTIONS}: int id, int n, then n times int line, long count,
+ *     int length, UTF-8 name</li>
+ * <li>{@link #BRANCHES}: int id, int n, then n times int line, int block,
+ *     int branch, long count</li>
+ * <li>{@link #STOP}: ask the server to shut down</li>
+ * </ul>
+ * Counts are the current values of the sender's counters, not increments.
+ * Since these only grow, a lost or repeated message does no harm. Function
+ * and branch records of a file replace those the connection sent before.
+ */
+public final class Collector implements Closeable {
+
+  static final byte SOURCE = 1;
+  static final byte LINES  = 2;
+  static final byte STOP   = 3;
+  static final byte FUNCTIONS = 4;
+  static final byte BRANCHES  = 5;
+
+  private static final String UNIX_PREFIX = "unix:";
+
+  /** How long {@link #close()} waits for clients to disconnect. */
+  private static final int CLOSE_GRACE_SECONDS = 10;
+
+  private final SocketAddress address;
+  private final Path          output;
+  private final MergeMode     mode;
+
+  private final ServerSocketChannel server;
+  private final ExecutorService     connections;
+  private final CountDownLatch      stopRequested = new CountDownLatch(1);
+  private final Set<SocketChannel>  open = ConcurrentHashMap.newKeySet();
+  private final CountDownLatch      acceptDone = new CountDownLatch(1);
+
+  private final Map<String, long[]> total = new HashMap<>();
+  private final Map<String, List<FunctionRecord>> totalFunctions = new HashMap<>();
+  private final Map<String, List<BranchRecord>>   totalBranches  = new HashMap<>();
+
+  private volatile boolean closing;
+
+  /**
+   * Start accepting connections on {@code address}, see
+   * {@link #parseAddress(String)}.
+   *
+   * @param mode how the counts of different connections are combined
+   */
+  public Collector(final String address, final Path output, final MergeMode mode)
+      throws IOException {
+    this.address = parseAddress(address);
+    this.output  = output;
+    this.mode    = mode;
+
+    if (this.address instanceof UnixDomainSocketAddress) {
+      // a socket file left behind by a server that was killed
+      Files.deleteIfExists(((UnixDomainSocketAddress) this.address).getPath());
+      server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    } else {
+      server = ServerSocketChannel.open();
+    }
+    server.bind(this.address);
+
+    connections = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "Coverage Collector");
+      t.setDaemon(true);
+      return t;
+    });
+    connections.execute(this::accept);
+  }
+
+  /**
+   * Parse a collector address: {@code unix:<path>} for a Unix domain socket,
+   * {@code <host>:<port>}, or only {@code <port>} on the loopback interface.
+   */
+  public static SocketAddress parseAddress(final String address) {
+    if (address.startsWith(UNIX_PREFIX)) {
+      return UnixDomainSocketAddress.of(address.substring(UNIX_PREFIX.length()));
+    }
+
+    int colon = address.lastIndexOf(':');
+    if (colon < 0) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+          Integer.parseInt(address));
+    }
+    return new InetSocketAddress(address.substring(0, colon),
+        Integer.parseInt(address.substring(colon + 1)));
+  }
+
+  /** The address the server is bound to, with the actual port if it was 0. */
+  public SocketAddress getAddress() throws IOException {
+    return server.getLocalAddress();
+  }
+
+  private void accept() {
+    try {
+      while (!closing) {
+        handle(server.accept());
+      }
+
+      // take the connections that were made before close() woke us up
+      server.configureBlocking(false);
+      for (SocketChannel c = server.accept(); c != null; c = server.accept()) {
+        c.configureBlocking(true);
+        handle(c);
+      }
+      server.close();
+    } catch (IOException e) {
+      // the server socket failed, the data received so far is kept
+    } finally {
+      acceptDone.countDown();
+    }
+  }
+
+  private void handle(final SocketChannel channel) {
+    open.add(channel);
+    connections.execute(() -> receive(channel));
+  }
+
+  private void receive(final SocketChannel channel) {
+    List<String> paths = new ArrayList<>();
+    List<long[]> tables = new ArrayList<>();
+    Map<Integer, List<FunctionRecord>> functions = new HashMap<>();
+    Map<Integer, List<BranchRecord>> branches = new HashMap<>();
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel)))) {
+      while (true) {
+        int type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+
+        if (type == SOURCE) {
+          int id = in.readInt();
+          int lineCount = in.readInt();
+          byte[] path = new byte[in.readInt()];
+          in.readFully(path);
+          while (paths.size() <= id) {
+            paths.add(null);
+            tables.add(null);
+          }
+          paths.set(id, new String(path, StandardCharsets.UTF_8));
+          tables.set(id, Gcov.newLines(lineCount));
+        } else if (type == LINES) {
+          int id = in.readInt();
+          int n = in.readInt();
+          long[] lines = tables.get(id);
+          for (int i = 0; i < n; i += 1) {
+            int line = in.readInt();
+            long count = in.readLong();
+            if (line >= lines.length) {
+              lines = Gcov.ensureLength(lines, line + 1);
+              tables.set(id, lines);
+            }
+            Gcov.updateLine(lines, line, count);
+          }
+        } else if (type == FUNCTIONS) {
+          int id = in.readInt();
+          int n = in.readInt();
+          List<FunctionRecord> records = new ArrayList<>(n);
+          for (int i = 0; i < n; i += 1) {
+            int line = in.readInt();
+            long count = in.readLong();
+            byte[] name = new byte[in.readInt()];
+            in.readFully(name);
+            records.add(new FunctionRecord(line, count, new String(name, StandardCharsets.UTF_8)));
+          }
+          functions.put(id, records);
+        } else if (type == BRANCHES) {
+          int id = in.readInt();
+          int n = in.readInt();
+          List<BranchRecord> records = new ArrayList<>(n);
+          for (int i = 0; i < n; i += 1) {
+            records.add(new BranchRecord(in.readInt(), in.readInt(), in.readInt(), in.readLong()));
+          }
+          branches.put(id, records);
+        } else if (type == STOP) {
+          stopRequested.countDown();
+        } else {
+          throw new IOException("Unknown message type: " + type);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // keep what the client sent before it failed
+    }
+    open.remove(channel);
+
+    Map<String, long[]> received = new HashMap<>();
+    Map<String, List<FunctionRecord>> receivedFunctions = new HashMap<>();
+    Map<String, List<BranchRecord>> receivedBranches = new HashMap<>();
+    for (int i = 0; i < paths.size(); i += 1) {
+      String path = paths.get(i);
+      if (path != null) {
+        received.put(path, tables.get(i));
+        if (functions.containsKey(i)) {
+          receivedFunctions.put(path, functions.get(i));
+        }
+        if (branches.containsKey(i)) {
+          receivedBranches.put(path, branches.get(i));
+        }
+      }
+    }
+    synchronized (total) {
+      mode.merge(total, received);
+      mode.mergeFunctions(totalFunctions, receivedFunctions);
+      mode.mergeBranches(totalBranches, receivedBranches);
+    }
+  }
+
+  /** Block until a client sent {@link #STOP}. */
+  public void awaitStop() throws InterruptedException {
+    stopRequested.await();
+  }
+
+  /**
+   * A copy of the coverage of all connections that were closed so far.
+   */
+  public Map<String, long[]> getCoverage() {
+    Map<String, long[]> copy = new HashMap<>();
+    synchronized (total) {
+      for (Map.Entry<String, long[]> e : total.entrySet()) {
+        copy.put(e.getKey(), e.getValue().clone());
+      }
+    }
+    return copy;
+  }
+
+  /** The function records of all connections that were closed so far. */
+  public Map<String, List<FunctionRecord>> getFunctionCoverage() {
+    synchronized (total) {
+      return new HashMap<>(totalFunctions);
+    }
+  }
+
+  /** The branch records of all connections that were closed so far. */
+  public Map<String, List<BranchRecord>> getBranchCoverage() {
+    synchronized (total) {
+      return new HashMap<>(totalBranches);
+    }
+  }
+
+  /**
+   * Stop accepting connections, wait for the open ones to be closed by their
+   * clients, and write the collected coverage to the output file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closing) {
+      return;
+    }
+    closing = true;
+
+    // wake up the accept loop, so that it takes pending connections and stops
+    try {
+      if (acceptDone.getCount() > 0) {
+        SocketChannel.open(getAddress()).close();
+      }
+    } catch (IOException e) {
+      // the accept loop saw closing after a last connection and stopped
+    }
+    try {
+      acceptDone.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (address instanceof UnixDomainSocketAddress) {
+      Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+    }
+
+    connections.shutdown();
+    try {
+      if (!connections.awaitTermination(CLOSE_GRACE_SECONDS, TimeUnit.SECONDS)) {
+        // clients that are still connected lose what they did not send yet
+        for (SocketChannel channel : open) {
+          channel.close();
+        }
+        connections.awaitTermination(CLOSE_GRACE_SECONDS, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    CoverageFormat.forPath(output).write(getCoverage(), getFunctionCoverage(),
+        getBranchCoverage(), output, mode == MergeMode.HIT);
+  }
+
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    if (args.length == 2 && args[0].equals("--stop")) {
+      try (CollectorClient client = new CollectorClient(args[1])) {
+        client.requestStop();
+      }
+      return;
+    }
+
+    int first = 0;
+    MergeMode mode = MergeMode.SUM;
+    if (args.length > 0 && args[0].startsWith("--")) {
+      mode = MergeMode.valueOf(args[0].substring(2).toUpperCase());
+      first = 1;
+    }
+
+    if (args.length - first != 2) {
+      // Checkstyle: stop
+      System.out.println("Usage: java gcov.Collector [--sum|--max|--hit] address outFile");
+      System.out.println("       java gcov.Collector --stop address");
+      // Checkstyle: resume
+      return;
+    }
+
+    Collector collector = new Collector(args[first], Paths.get(args[first + 1]), mode);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        collector.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }));
+    collector.awaitStop();
+    collector.close();
+  }
+}
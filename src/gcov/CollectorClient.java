@@ -0,0 +1,169 @@
+package gcov;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Sends coverage to a {@link Collector}. The paths of files are sent once,
+ * afterwards they are referred to by a numeric id.
+ */
+public final class CollectorClient implements Closeable {
+
+  private final SocketChannel channel;
+
+  private final Map<String, Integer> ids = new HashMap<>();
+
+  /** Connect to the collector at {@code address}, see {@link Collector#parseAddress}. */
+  public CollectorClient(final String address) throws IOException {
+    SocketAddress a = Collector.parseAddress(address);
+    if (a instanceof UnixDomainSocketAddress) {
+      channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+    } else {
+      channel = SocketChannel.open();
+    }
+    channel.connect(a);
+  }
+
+  /**
+   * Send the lines of {@code coverageMap} that are not {@link Gcov#NO_CODE}
+   * in one batch. Returns the number of bytes sent.
+   */
+  public synchronized long send(final Map<String, long[]> coverageMap) throws IOException {
+    int size = 0;
+    for (Entry<String, long[]> e : coverageMap.entrySet()) {
+      if (!ids.containsKey(e.getKey())) {
+        size += 1 + 3 * Integer.BYTES
+            + e.getKey().getBytes(StandardCharsets.UTF_8).length;
+      }
+      size += 1 + 2 * Integer.BYTES
+          + countLines(e.getValue()) * (Integer.BYTES + Long.BYTES);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (Entry<String, long[]> e : coverageMap.entrySet()) {
+      long[] lines = e.getValue();
+      Integer id = ids.get(e.getKey());
+      if (id == null) {
+        id = ids.size();
+        ids.put(e.getKey(), id);
+
+        byte[] path = e.getKey().getBytes(StandardCharsets.UTF_8);
+        buffer.put(Collector.SOURCE);
+        buffer.putInt(id);
+        buffer.putInt(lines.length);
+        buffer.putInt(path.length);
+        buffer.put(path);
+      }
+
+      buffer.put(Collector.LINES);
+      buffer.putInt(id);
+      buffer.putInt(countLines(lines));
+      for (int i = 0; i < lines.length; i += 1) {
+        if (lines[i] != Gcov.NO_CODE) {
+          buffer.putInt(i);
+          buffer.putLong(lines[i]);
+        }
+      }
+    }
+
+    write(buffer);
+    return size;
+  }
+
+  /**
+   * Send the function and branch records of each file. They replace the
+   * records sent before for the same file. Returns the number of bytes sent.
+   */
+  public synchronized long sendRecords(final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    for (Entry<String, List<FunctionRecord>> e : functions.entrySet()) {
+      int id = getId(e.getKey(), out);
+      out.writeByte(Collector.FUNCTIONS);
+      out.writeInt(id);
+      out.writeInt(e.getValue().size());
+      for (FunctionRecord f : e.getValue()) {
+        byte[] name = f.name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(f.line);
+        out.writeLong(f.count);
+        out.writeInt(name.length);
+        out.write(name);
+      }
+    }
+
+    for (Entry<String, List<BranchRecord>> e : branches.entrySet()) {
+      int id = getId(e.getKey(), out);
+      out.writeByte(Collector.BRANCHES);
+      out.writeInt(id);
+      out.writeInt(e.getValue().size());
+      for (BranchRecord b : e.getValue()) {
+        out.writeInt(b.line);
+        out.writeInt(b.block);
+        out.writeInt(b.branch);
+        out.writeLong(b.count);
+      }
+    }
+
+    out.flush();
+    write(ByteBuffer.wrap(bytes.toByteArray()).position(bytes.size()));
+    return bytes.size();
+  }
+
+  /** Return the id of {@code path}, and announce it to {@code out} if it is new. */
+  private int getId(final String path, final DataOutputStream out) throws IOException {
+    Integer id = ids.get(path);
+    if (id == null) {
+      id = ids.size();
+      ids.put(path, id);
+
+      byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+      out.writeByte(Collector.SOURCE);
+      out.writeInt(id);
+      out.writeInt(0);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    return id;
+  }
+
+  /** Ask the collector to write its output and exit. */
+  public synchronized void requestStop() throws IOException {
+    write(ByteBuffer.allocate(1).put(Collector.STOP));
+  }
+
+  private void write(final ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static int countLines(final long[] lines) {
+    int n = 0;
+    for (long l : lines) {
+      if (l != Gcov.NO_CODE) {
+        n += 1;
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,226 @@
+package gcov;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statement counters that live in a memory-mapped file. Counts written with
+ * {@link #set(int, long)} go directly to the mapping, so the operating system persists them even if the process is
+ * killed, and {@link #read(Path)} can recover them later.
+ *
+ * <p>The file starts with a header:
+ * <pre>
+ *   magic    4 bytes  "TCMM"
+ *   version  4 bytes
+ *   capacity 8 bytes  size of the file
+ *   used     8 bytes  end of the last complete record
+ *   reserved 8 bytes
+ * </pre>
+ * followed by 8-byte aligned records. A source record maps a path to an id:
+ * type 1, id, line count, path length, and the UTF-8 path. A statement record
+ * holds the counter of one statement: type 2, source id, 0-based line, and
+ * the 8-byte count. Lines with several statements report the maximum.
+ */
+public final class CounterRegion {
+
+  static final int VERSION = 1;
+
+  private static final byte[] MAGIC = {'T', 'C', 'M', 'M'};
+
+  private static final int HEADER_SIZE  = 32;
+  private static final int USED_OFFSET  = 16;
+  private static final int TYPE_SOURCE    = 1;
+  private static final int TYPE_STATEMENT = 2;
+
+  private static final int STATEMENT_SIZE = 24;
+  private static final int COUNT_OFFSET   = 16;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(
+      long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final MappedByteBuffer buffer;
+
+  private int used;
+  private int numSources;
+
+  private CounterRegion(final MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.used   = HEADER_SIZE;
+  }
+
+  /** Create a new region of {@code capacity} bytes, replacing {@code file}. */
+  public static CounterRegion create(final Path file, final int capacity)
+      throws IOException {
+    if (capacity < HEADER_SIZE) {
+      throw new IllegalArgumentException("Capacity too small: " + capacity);
+    }
+
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer = channel.map(MapMode.READ_WRITE, 0, capacity);
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    buffer.put(0, MAGIC[0]).put(1, MAGIC[1]).put(2, MAGIC[2]).put(3, MAGIC[3]);
+    buffer.putInt(4, VERSION);
+    buffer.putLong(8, capacity);
+    LONGS.setRelease(buffer, USED_OFFSET, (long) HEADER_SIZE);
+    return new CounterRegion(buffer);
+  }
+
+  /**
+   * Add a source and return its id, or -1 if the region is full.
+   */
+  public synchronized int addSource(final String path, final int lineCount) {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    int size = align(16 + bytes.length);
+    if (!hasRoom(size)) {
+      return -1;
+    }
+
+    int id = numSources;
+    numSources += 1;
+
+    buffer.putInt(used, TYPE_SOURCE);
+    buffer.putInt(used + 4, id);
+    buffer.putInt(used + 8, lineCount);
+    buffer.putInt(used + 12, bytes.length);
+    for (int i = 0; i < bytes.length; i += 1) {
+      buffer.put(used + 16 + i, bytes[i]);
+    }
+    publish(size);
+    return id;
+  }
+
+  /**
+   * Add a statement on the given 0-based line and return the offset of its
+   * counter, or -1 if the region is full.
+   */
+  public synchronized int addStatement(final int sourceId, final int line) {
+    if (!hasRoom(STATEMENT_SIZE)) {
+      return -1;
+    }
+
+    int record = used;
+    buffer.putInt(record, TYPE_STATEMENT);
+    buffer.putInt(record + 4, sourceId);
+    buffer.putInt(record + 8, line);
+    buffer.putLong(record + COUNT_OFFSET, 0);
+    publish(STATEMENT_SIZE);
+    return record + COUNT_OFFSET;
+  }
+
+  private boolean hasRoom(final int size) {
+    return (long) used + size <= buffer.capacity();
+  }
+
+  private void publish(final int size) {
+    used += size;
+    LONGS.setRelease(buffer, USED_OFFSET, (long) used);
+  }
+
+  private static int align(final int size) {
+    return (size + 7) & ~7;
+  }
+
+  /**
+   * Set the counter at {@code offset}. Counts written this way should only
+   * grow, and have a single writer.
+   */
+  public void set(final int offset, final long count) {
+    LONGS.setRelease(buffer, offset, count);
+  }
+
+  /** Write all changes to the storage device. */
+  public void force() {
+    buffer.force();
+  }
+
+  /**
+   * Read the counts from a region file, for instance one left behind by a
+   * killed process.
+   */
+  public static Map<String, long[]> read(final Path file) throws IOException {
+    ByteBuffer data;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (data.capacity() < HEADER_SIZE) {
+      throw new IOException("Not a counter region: header is truncated");
+    }
+    for (int i = 0; i < MAGIC.length; i += 1) {
+      if (data.get(i) != MAGIC[i]) {
+        throw new IOException("Not a counter region: wrong magic number");
+      }
+    }
+    int version = data.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported counter region version: " + version);
+    }
+    long used = Math.min(data.getLong(USED_OFFSET), data.capacity());
+
+    Map<Integer, String> paths = new HashMap<>();
+    Map<String, long[]> result = new HashMap<>();
+
+    int pos = HEADER_SIZE;
+    while (pos + 8 <= used) {
+      int type = data.getInt(pos);
+      int sourceId = data.getInt(pos + 4);
+      if (type == TYPE_SOURCE) {
+        int lineCount = data.getInt(pos + 8);
+        byte[] bytes = new byte[data.getInt(pos + 12)];
+        for (int i = 0; i < bytes.length; i += 1) {
+          bytes[i] = data.get(pos + 16 + i);
+        }
+        String path = new String(bytes, StandardCharsets.UTF_8);
+        paths.put(sourceId, path);
+        long[] lines = result.get(path);
+        result.put(path, lines == null
+            ? Gcov.newLines(lineCount) : Gcov.ensureLength(lines, lineCount));
+        pos += align(16 + bytes.length);
+      } else if (type == TYPE_STATEMENT) {
+        String path = paths.get(sourceId);
+        if (path == null) {
+          throw new IOException("Statement record refers to unknown source " + sourceId);
+        }
+        int line = data.getInt(pos + 8);
+        long[] lines = Gcov.ensureLength(result.get(path), line + 1);
+        Gcov.updateLine(lines, line, data.getLong(pos + COUNT_OFFSET));
+        result.put(path, lines);
+        pos += STATEMENT_SIZE;
+      } else {
+        throw new IOException("Unknown record type " + type + " at offset " + pos);
+      }
+    }
+    return result;
+  }
+
+  /** Convert a region file into a coverage file. */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 2) {
+      // Checkstyle: stop
+      System.out.println("Usage: java gcov.CounterRegion regionFile outFile");
+      // Checkstyle: resume
+      return;
+    }
+
+    Path out = Paths.get(args[1]);
+    CoverageFormat.forPath(out).write(read(Paths.get(args[0])), out, false);
+  }
+}
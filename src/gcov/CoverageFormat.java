@@ -0,0 +1,133 @@
+package gcov;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The supported file formats for coverage data. The format of a file is
+ * determined by its extension: {@link BinaryCoverage#EXTENSION} selects
+ * the binary format, everything else is Gcov text.
+ */
+public enum CoverageFormat {
+  GCOV,
+  BINARY;
+
+  public static CoverageFormat forPath(final Path file) {
+    if (file.getFileName().toString().endsWith(BinaryCoverage.EXTENSION)) {
+      return BINARY;
+    }
+    return GCOV;
+  }
+
+  public Map<String, long[]> load(final Path file) throws IOException {
+    if (this == BINARY) {
+      return BinaryCoverage.load(file);
+    }
+    return Gcov.load(file);
+  }
+
+  /**
+   * Load the function records of {@code file}. The binary format does not
+   * record functions, so the result is empty for it.
+   */
+  public Map<String, List<FunctionRecord>> loadFunctions(final Path file)
+      throws IOException {
+    if (this == BINARY) {
+      return new HashMap<>();
+    }
+    return Gcov.loadFunctions(file);
+  }
+
+  /** Load the branch records of {@code file}, empty for the binary format. */
+  public Map<String, List<BranchRecord>> loadBranches(final Path file)
+      throws IOException {
+    if (this == BINARY) {
+      return new HashMap<>();
+    }
+    return Gcov.loadBranches(file);
+  }
+
+  /**
+   * Write the coverage data to {@code file}, replacing it atomically.
+   *
+   * @param hitOnly only record whether lines were executed, if the format
+   *          supports it
+   */
+  public void write(final Map<String, long[]> coverageMap, final Path file,
+      final boolean hitOnly) throws IOException {
+    write(coverageMap, Collections.emptyMap(), Collections.emptyMap(), file, hitOnly);
+  }
+
+  /**
+   * Write the coverage data, function, and branch records to {@code file},
+   * replacing it atomically. Function and branch records are dropped by the
+   * binary format.
+   *
+   * @param hitOnly only record whether lines were executed, if the format
+   *          supports it
+   */
+  public void write(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches, final Path file,
+      final boolean hitOnly) throws IOException {
+    if (this == BINARY) {
+      BinaryCoverage.write(coverageMap, file, hitOnly);
+    } else {
+      Gcov.write(coverageMap, functions, branches, file);
+    }
+  }
+
+  /**
+   * Merge the coverage data into {@code file}, which may be shared with other
+   * processes. Under an exclusive file lock, the current content of the file
+   * and its {@link DeltaLog} are read, merged with {@code coverageMap}, and
+   * written back, so that no process overwrites the data of another.
+   *
+   * @param hitOnly only record whether lines were executed, if the format
+   *          supports it
+   */
+  public void update(final Map<String, long[]> coverageMap, final Path file,
+      final MergeMode mode, final boolean hitOnly) throws IOException {
+    update(coverageMap, Collections.emptyMap(), Collections.emptyMap(), file, mode, hitOnly);
+  }
+
+  /**
+   * Merge the coverage data, function, and branch records into
+   * {@code file}, see {@link #update(Map, Path, MergeMode, boolean)}.
+   */
+  public void update(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches, final Path file,
+      final MergeMode mode, final boolean hitOnly) throws IOException {
+    OutputLock lock = OutputLock.acquire(file);
+    try {
+      Map<String, long[]> data;
+      Map<String, List<FunctionRecord>> functionData;
+      Map<String, List<BranchRecord>> branchData;
+      if (Files.exists(file)) {
+        data = load(file);
+        functionData = loadFunctions(file);
+        branchData = loadBranches(file);
+      } else {
+        data = new HashMap<>();
+        functionData = new HashMap<>();
+        branchData = new HashMap<>();
+      }
+
+      Path log = DeltaLog.forFile(file);
+      MergeMode.MAX.merge(data, DeltaLog.load(log));
+      mode.merge(data, coverageMap);
+      mode.mergeFunctions(functionData, functions);
+      mode.mergeBranches(branchData, branches);
+      write(data, functionData, branchData, file, hitOnly);
+      Files.deleteIfExists(log);
+    } finally {
+      lock.close();
+    }
+  }
+}
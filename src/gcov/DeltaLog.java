@@ -0,0 +1,125 @@
+package gcov;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only log of coverage snapshots next to a coverage file.
+ *
+ * <p>Each snapshot is appended as Gcov text records, containing only the
+ * lines that changed since the previous snapshot. Since counts only grow
+ * during a run, the log is read by keeping the maximum of all records of a
+ * line. {@link #compact(Path)} folds the log into the coverage file, which
+ * writers do once the log exceeds a size limit.
+ */
+public final class DeltaLog {
+
+  public static final String EXTENSION = ".delta";
+
+  private DeltaLog() { }
+
+  /** Return the path of the delta log for the given coverage file. */
+  public static Path forFile(final Path coverageFile) {
+    return coverageFile.resolveSibling(coverageFile.getFileName() + EXTENSION);
+  }
+
+  /**
+   * Append a snapshot to the log and force it to disk. Returns the number of
+   * bytes written. The caller must hold the {@link OutputLock} of the
+   * coverage file if other processes may update it, see
+   * {@link #append(Map, Path, long)}.
+   */
+  public static long append(final Map<String, long[]> delta, final Path log)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      long before = channel.size();
+      Gcov.write(delta, channel);
+      channel.force(false);
+      return channel.size() - before;
+    }
+  }
+
+  /**
+   * Append a snapshot to the delta log of {@code coverageFile}, see
+   * {@link #append(Map, Path)}, and {@link #compact(Path) compact} the log
+   * once it is larger than {@code maxLogBytes}, so that it does not grow
+   * without bound in long-running processes. Returns the number of bytes
+   * appended.
+   *
+   * <p>The append holds the {@link OutputLock} of the coverage file, so that
+   * it cannot land between the read and the deletion of the log by
+   * {@link CoverageFormat#update}.
+   */
+  public static long append(final Map<String, long[]> delta, final Path coverageFile,
+      final long maxLogBytes) throws IOException {
+    Path log = forFile(coverageFile);
+    long written;
+    long logBytes;
+    OutputLock lock = OutputLock.acquire(coverageFile);
+    try {
+      written = append(delta, log);
+      logBytes = Files.size(log);
+    } finally {
+      lock.close();
+    }
+
+    if (logBytes > maxLogBytes) {
+      compact(coverageFile);
+    }
+    return written;
+  }
+
+  /**
+   * Load the log. A partially written last record, for instance from a crash
+   * during {@link #append(Map, Path)}, is ignored.
+   */
+  public static Map<String, long[]> load(final Path log) throws IOException {
+    if (!Files.exists(log)) {
+      return new HashMap<>();
+    }
+
+    byte[] bytes = Files.readAllBytes(log);
+    int end = bytes.length;
+    while (end > 0 && bytes[end - 1] != '\n') {
+      end -= 1;
+    }
+    return Gcov.load(ByteBuffer.wrap(bytes, 0, end), false, false, MergeMode.MAX);
+  }
+
+  /**
+   * Fold the delta log of {@code coverageFile} into the file, and delete the
+   * log. Does nothing if there is no log. Safe to call while other processes
+   * update the same file, see {@link CoverageFormat#update}. A hit-only
+   * binary file stays hit-only.
+   */
+  public static void compact(final Path coverageFile) throws IOException {
+    if (!Files.exists(forFile(coverageFile))) {
+      return;
+    }
+
+    CoverageFormat format = CoverageFormat.forPath(coverageFile);
+    boolean hitOnly = format == CoverageFormat.BINARY && BinaryCoverage.isHitOnly(coverageFile);
+    format.update(new HashMap<>(), coverageFile, MergeMode.MAX, hitOnly);
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 1) {
+      // Checkstyle: stop
+      System.out.println("Usage: java gcov.DeltaLog coverageFile...");
+      // Checkstyle: resume
+      return;
+    }
+
+    for (String file : args) {
+      compact(Paths.get(file));
+    }
+  }
+}
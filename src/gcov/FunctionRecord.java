@@ -0,0 +1,42 @@
+package gcov;
+
+/**
+ * The execution count of a function, written as a
+ * {@code function:<line>,<count>,<name>} record in gcov files.
+ */
+public final class FunctionRecord {
+  /** 1-based line on which the function starts. */
+  public final int    line;
+  public final long   count;
+  public final String name;
+
+  public FunctionRecord(final int line, final long count, final String name) {
+    this.line  = line;
+    this.count = count;
+    this.name  = name;
+  }
+
+  /** Whether {@code other} describes the same function. */
+  public boolean isSameFunction(final FunctionRecord other) {
+    return line == other.line && name.equals(other.name);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof FunctionRecord)) {
+      return false;
+    }
+    FunctionRecord r = (FunctionRecord) o;
+    return isSameFunction(r) && count == r.count;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * line + Long.hashCode(count)) + name.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "function:" + line + "," + count + "," + name;
+  }
+}
@@ -3,59 +3,225 @@ package gcov;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Gcov {
 
+  /** Marks lines in a coverage array that do not contain code. */
+  public static final long NO_CODE = -1;
+
   private static final String FILE_MARK = "file:";
   private static final String LINE_MARK = "lcount:";
+  private static final String FUNCTION_MARK = "function:";
+  private static final String BRANCH_MARK = "branch:";
+
+  static final byte[] FILE_MARK_BYTES = FILE_MARK.getBytes(StandardCharsets.US_ASCII);
+  static final byte[] LINE_MARK_BYTES = LINE_MARK.getBytes(StandardCharsets.US_ASCII);
+  static final byte[] FUNCTION_MARK_BYTES = FUNCTION_MARK.getBytes(StandardCharsets.US_ASCII);
+  static final byte[] BRANCH_MARK_BYTES = BRANCH_MARK.getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] NEWLINE = {'\n'};
+
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Longest numeric part of a record: the longer mark, two signed longs, and
+   * a comma and a comma or newline.
+   */
+  private static final int MAX_LINE_RECORD = FUNCTION_MARK.length() + 2 * 20 + 2;
+
+  /** Longest branch record: mark, three ints, a signed long, and separators. */
+  private static final int MAX_BRANCH_RECORD = BRANCH_MARK.length() + 3 * 11 + 20 + 4;
+
+  /**
+   * Create a coverage array for a file with the given number of lines,
+   * with all lines marked as {@link #NO_CODE}.
+   */
+  public static long[] newLines(final int numLines) {
+    long[] lines = new long[numLines];
+    Arrays.fill(lines, NO_CODE);
+    return lines;
+  }
+
+  /**
+   * Return an array of at least the given length, copying {@code lines} and
+   * marking the added lines as {@link #NO_CODE} if it is too short.
+   */
+  public static long[] ensureLength(final long[] lines, final int length) {
+    if (lines.length >= length) {
+      return lines;
+    }
+    long[] result = Arrays.copyOf(lines, length);
+    Arrays.fill(result, lines.length, length, NO_CODE);
+    return result;
+  }
+
+  /** Merge a count into a line, keeping the maximum. */
+  public static void updateLine(final long[] lines, final int line, final long count) {
+    if (lines[line] == NO_CODE) {
+      lines[line] = count;
+    } else {
+      lines[line] = Math.max(count, lines[line]);
+    }
+  }
 
   /**
    * Load a Gcov file with coverage data and return it as a map.
+   * Lines without data are {@link #NO_CODE}.
    */
-  public static Map<String, Long[]> load(final InputStream stream) throws IOException {
-    InputStreamReader in = new InputStreamReader(stream);
-    BufferedReader reader = new BufferedReader(in);
+  public static Map<String, long[]> load(final InputStream stream) throws IOException {
+    return load(ByteBuffer.wrap(stream.readAllBytes()), false, false);
+  }
+
+  /**
+   * Load a Gcov file by memory-mapping it, see {@link #load(InputStream)}.
+   */
+  public static Map<String, long[]> load(final Path file) throws IOException {
+    return load(file, false, false);
+  }
 
-    Map<String, Long[]> result = new HashMap<>();
+  /**
+   * Load a Gcov file by memory-mapping it.
+   *
+   * @param lenient skip records of unknown type instead of failing
+   * @param parallel parse the records of different files in parallel
+   */
+  public static Map<String, long[]> load(final Path file, final boolean lenient,
+      final boolean parallel) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Gcov files larger than 2GB are not supported: " + file);
+      }
+      return load(channel.map(MapMode.READ_ONLY, 0, size), lenient, parallel);
+    }
+  }
 
-    String line;
+  /**
+   * Parse the remaining bytes of {@code data} as Gcov records.
+   *
+   * @param lenient skip records of unknown type instead of failing
+   * @param parallel parse the records of different files in parallel
+   */
+  public static Map<String, long[]> load(final ByteBuffer data, final boolean lenient,
+      final boolean parallel) throws IOException {
+    return GcovParser.parse(data, lenient, parallel, null);
+  }
 
-    String fileName = null;
-    Map<Long, Long> coverage = null;
+  /**
+   * Parse the remaining bytes of {@code data} as Gcov records, combining
+   * the records of files that occur more than once with {@code mode}.
+   *
+   * @param lenient skip records of unknown type instead of failing
+   * @param parallel parse the records of different files in parallel
+   */
+  public static Map<String, long[]> load(final ByteBuffer data, final boolean lenient,
+      final boolean parallel, final MergeMode mode) throws IOException {
+    return GcovParser.parse(data, lenient, parallel, mode);
+  }
 
-    while ((line = reader.readLine()) != null) {
-      if (line.startsWith(FILE_MARK)) {
-        if (coverage != null) {
-          addCoverageEntry(result, fileName, coverage);
+  /**
+   * Load the {@code function:} records of a Gcov file, per file. Line
+   * records are skipped, see {@link #load(Path)} for those.
+   */
+  public static Map<String, List<FunctionRecord>> loadFunctions(final Path file)
+      throws IOException {
+    Map<String, List<FunctionRecord>> result = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      List<FunctionRecord> functions = null;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(FILE_MARK)) {
+          functions = result.computeIfAbsent(
+              line.substring(FILE_MARK.length()), f -> new ArrayList<>());
+        } else if (line.startsWith(FUNCTION_MARK) && functions != null) {
+          functions.add(parseFunction(line));
         }
-
-        fileName = line.substring(FILE_MARK.length());
-        coverage = new HashMap<>();
-      } else if (line.startsWith(LINE_MARK)) {
-        addLineData(line, coverage);
-      } else {
-        throw new IOException("Line contains data that is not yet supported: " + line);
       }
     }
+    result.values().removeIf(List::isEmpty);
+    return result;
+  }
 
-    addCoverageEntry(result, fileName, coverage);
+  /**
+   * Load the {@code branch:} records of a Gcov file, per file, see
+   * {@link BranchRecord}.
+   */
+  public static Map<String, List<BranchRecord>> loadBranches(final Path file)
+      throws IOException {
+    Map<String, List<BranchRecord>> result = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      List<BranchRecord> branches = null;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(FILE_MARK)) {
+          branches = result.computeIfAbsent(
+              line.substring(FILE_MARK.length()), f -> new ArrayList<>());
+        } else if (line.startsWith(BRANCH_MARK) && branches != null) {
+          branches.add(parseBranch(line));
+        }
+      }
+    }
+    result.values().removeIf(List::isEmpty);
     return result;
   }
 
-  public static String toString(final Map<String, Long[]> coverageMap) {
+  private static BranchRecord parseBranch(final String record) throws IOException {
+    String[] fields = record.substring(BRANCH_MARK.length()).split(",");
+    if (fields.length != 4) {
+      throw new IOException("Malformed branch record: " + record);
+    }
+    try {
+      return new BranchRecord(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+          Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed branch record: " + record, e);
+    }
+  }
+
+  private static FunctionRecord parseFunction(final String record) throws IOException {
+    String[] fields = record.substring(FUNCTION_MARK.length()).split(",", 3);
+    if (fields.length != 3) {
+      throw new IOException("Malformed function record: " + record);
+    }
+    try {
+      return new FunctionRecord(Integer.parseInt(fields[0]),
+          Long.parseLong(fields[1]), fields[2]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed function record: " + record, e);
+    }
+  }
+
+  public static String toString(final Map<String, long[]> coverageMap) {
     StringBuilder builder = new StringBuilder();
-    for (Entry<String, Long[]> e : coverageMap.entrySet()) {
+    for (Entry<String, long[]> e : coverageMap.entrySet()) {
       builder.append(FILE_MARK);
       builder.append(e.getKey());
       builder.append('\n');
 
-      Long[] lines = e.getValue();
+      long[] lines = e.getValue();
       for (int i = 0; i < lines.length; i += 1) {
-        if (lines[i] != null) {
+        if (lines[i] != NO_CODE) {
           builder.append(LINE_MARK);
           builder.append(i + 1);
           builder.append(',');
@@ -68,20 +234,201 @@ public class Gcov {
     return builder.toString();
   }
 
-  private static void addLineData(final String line, final Map<Long, Long> coverage) {
-    String data = line.substring(LINE_MARK.length());
-    String[] lineData = data.split(",");
-    assert lineData.length == 2;
-    coverage.put(Long.valueOf(lineData[0]), Long.valueOf(lineData[1]));
+  /**
+   * Write the coverage data to {@code file}. The data is streamed through a
+   * fixed-size buffer into a temporary file in the same directory, which then
+   * atomically replaces {@code file}. Thus, a crash while writing never
+   * leaves a truncated file behind.
+   */
+  public static void write(final Map<String, long[]> coverageMap, final Path file)
+      throws IOException {
+    write(coverageMap, Collections.emptyMap(), Collections.emptyMap(), file);
+  }
+
+  /**
+   * Write the coverage data, function, and branch records to {@code file},
+   * see {@link #write(Map, Path)}.
+   */
+  public static void write(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches, final Path file)
+      throws IOException {
+    Path target = file.toAbsolutePath();
+    Path tmp = createTempFile(target);
+    try {
+      try (FileChannel channel = FileChannel.open(tmp,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        write(coverageMap, functions, branches, channel);
+        channel.force(true);
+      }
+      moveAtomically(tmp, target);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+  /**
+   * Create an empty file next to {@code target}, to be moved over it with
+   * {@link #moveAtomically}. Unlike {@link Files#createTempFile(Path, String,
+   * String, java.nio.file.attribute.FileAttribute...)}, which makes the file
+   * accessible only to its owner, the file has the permissions of
+   * {@code target}, or, if there is no target yet, the default permissions
+   * for new files.
+   */
+  static Path createTempFile(final Path target) throws IOException {
+    String prefix = target.getFileName().toString() + ".";
+    Path tmp;
+    while (true) {
+      tmp = target.resolveSibling(prefix
+          + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+      try {
+        Files.createFile(tmp);
+        break;
+      } catch (FileAlreadyExistsException e) {
+        continue;
+      }
+    }
+
+    try {
+      if (Files.exists(target)
+          && target.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    return tmp;
+  }
+
+  static void moveAtomically(final Path from, final Path to) throws IOException {
+    try {
+      Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Encode the coverage data in gcov format directly into {@code channel},
+   * using a buffer of fixed size.
+   */
+  public static void write(final Map<String, long[]> coverageMap,
+      final WritableByteChannel channel) throws IOException {
+    write(coverageMap, Collections.emptyMap(), Collections.emptyMap(), channel);
+  }
+
+  /**
+   * Encode the coverage data, function, and branch records in gcov format
+   * directly into {@code channel}. The function records of a file precede
+   * its lines, the branch records follow them.
+   */
+  public static void write(final Map<String, long[]> coverageMap,
+      final Map<String, List<FunctionRecord>> functions,
+      final Map<String, List<BranchRecord>> branches,
+      final WritableByteChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    byte[] digits = new byte[20];
+
+    Set<String> files = new LinkedHashSet<>(coverageMap.keySet());
+    files.addAll(functions.keySet());
+    files.addAll(branches.keySet());
+
+    for (String file : files) {
+      put(buffer, channel, FILE_MARK_BYTES);
+      put(buffer, channel, file.getBytes(StandardCharsets.UTF_8));
+      put(buffer, channel, NEWLINE);
+
+      for (FunctionRecord f : functions.getOrDefault(file, Collections.emptyList())) {
+        if (buffer.remaining() < MAX_LINE_RECORD) {
+          flush(buffer, channel);
+        }
+        buffer.put(FUNCTION_MARK_BYTES);
+        putLong(buffer, f.line, digits);
+        buffer.put((byte) ',');
+        putLong(buffer, f.count, digits);
+        buffer.put((byte) ',');
+        put(buffer, channel, f.name.getBytes(StandardCharsets.UTF_8));
+        put(buffer, channel, NEWLINE);
+      }
+
+      long[] lines = coverageMap.getOrDefault(file, new long[0]);
+      for (int i = 0; i < lines.length; i += 1) {
+        if (lines[i] != NO_CODE) {
+          if (buffer.remaining() < MAX_LINE_RECORD) {
+            flush(buffer, channel);
+          }
+          buffer.put(LINE_MARK_BYTES);
+          putLong(buffer, i + 1, digits);
+          buffer.put((byte) ',');
+          putLong(buffer, lines[i], digits);
+          buffer.put((byte) '\n');
+        }
+      }
+
+      for (BranchRecord b : branches.getOrDefault(file, Collections.emptyList())) {
+        if (buffer.remaining() < MAX_BRANCH_RECORD) {
+          flush(buffer, channel);
+        }
+        buffer.put(BRANCH_MARK_BYTES);
+        putLong(buffer, b.line, digits);
+        buffer.put((byte) ',');
+        putLong(buffer, b.block, digits);
+        buffer.put((byte) ',');
+        putLong(buffer, b.branch, digits);
+        buffer.put((byte) ',');
+        putLong(buffer, b.count, digits);
+        buffer.put((byte) '\n');
+      }
+    }
+
+    flush(buffer, channel);
+  }
+
+  private static void put(final ByteBuffer buffer, final WritableByteChannel channel,
+      final byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (!buffer.hasRemaining()) {
+        flush(buffer, channel);
+      }
+      int length = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, length);
+      offset += length;
+    }
+  }
+
+  private static void putLong(final ByteBuffer buffer, final long value,
+      final byte[] digits) {
+    if (value == Long.MIN_VALUE) {
+      buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+      return;
+    }
+
+    long v = value;
+    if (v < 0) {
+      buffer.put((byte) '-');
+      v = -v;
+    }
+
+    int pos = digits.length;
+    do {
+      pos -= 1;
+      digits[pos] = (byte) ('0' + (v % 10));
+      v /= 10;
+    } while (v != 0);
+
+    buffer.put(digits, pos, digits.length - pos);
   }
 
-  private static void addCoverageEntry(final Map<String, Long[]> result,
-      final String fileName, final Map<Long, Long> coverage) {
-    int numLines = (int) (long) coverage.keySet().stream().reduce(Long::max).get();
-    Long[] lines = new Long[numLines];
-    for (Entry<Long, Long> e : coverage.entrySet()) {
-      lines[(int) (long) e.getKey() - 1] = e.getValue();
+  private static void flush(final ByteBuffer buffer,
+      final WritableByteChannel channel) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
     }
-    result.put(fileName, lines);
+    buffer.clear();
   }
 }
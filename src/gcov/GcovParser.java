@@ -0,0 +1,285 @@
+package gcov;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Parses gcov records directly from a {@link ByteBuffer}, for instance a
+ * memory-mapped file. Apart from the file names and the resulting arrays,
+ * parsing does not allocate.
+ *
+ * <p>Each {@code file:} record starts a section that can be parsed
+ * independently, which {@link #parse(ByteBuffer, boolean, boolean)} uses to
+ * parse sections in parallel.
+ */
+final class GcovParser {
+
+  private final ByteBuffer data;
+  private final boolean    lenient;
+  private final int        end;
+
+  private int pos;
+
+  private GcovParser(final ByteBuffer data, final boolean lenient,
+      final int start, final int end) {
+    this.data    = data;
+    this.lenient = lenient;
+    this.pos     = start;
+    this.end     = end;
+  }
+
+  /**
+   * Parse the remaining bytes of {@code data}. In lenient mode, records of
+   * unknown type are skipped, otherwise they cause an {@link IOException}.
+   * If a file occurs more than once, the sections are combined with
+   * {@code mode}, or the last one is used if {@code mode} is {@code null}.
+   */
+  static Map<String, long[]> parse(final ByteBuffer data, final boolean lenient,
+      final boolean parallel, final MergeMode mode) throws IOException {
+    Map<String, long[]> result = new HashMap<>();
+
+    if (!parallel) {
+      new GcovParser(data, lenient, data.position(), data.limit()).parseInto(result, mode);
+      return result;
+    }
+
+    int[] starts = findSections(data);
+    Section[] sections = new Section[starts.length - 1];
+    try {
+      IntStream.range(0, sections.length).parallel().forEach(i -> {
+        GcovParser parser = new GcovParser(data.duplicate(), lenient,
+            starts[i], starts[i + 1]);
+        try {
+          sections[i] = parser.parseSection();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    // combine sections in order, as in sequential mode
+    for (Section s : sections) {
+      if (s != null) {
+        s.addTo(result, mode);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the offsets of all lines starting with a file record, preceded by
+   * the start and followed by the end of the data.
+   */
+  private static int[] findSections(final ByteBuffer data) {
+    List<Integer> starts = new ArrayList<>();
+    int start = data.position();
+    int end = data.limit();
+    starts.add(start);
+
+    for (int i = start; i < end; i += 1) {
+      if ((i == start || data.get(i - 1) == '\n') && startsWith(data, i, end, Gcov.FILE_MARK_BYTES)) {
+        if (i != start) {
+          starts.add(i);
+        }
+      }
+    }
+    starts.add(end);
+
+    int[] result = new int[starts.size()];
+    for (int i = 0; i < result.length; i += 1) {
+      result[i] = starts.get(i);
+    }
+    return result;
+  }
+
+  private static final class Section {
+    final String fileName;
+    final long[] lines;
+
+    Section(final String fileName, final long[] lines) {
+      this.fileName = fileName;
+      this.lines    = lines;
+    }
+
+    void addTo(final Map<String, long[]> result, final MergeMode mode) {
+      long[] existing = mode == null ? null : result.get(fileName);
+      if (existing == null) {
+        result.put(fileName, lines);
+      } else {
+        result.put(fileName, mode.merge(existing, lines));
+      }
+    }
+  }
+
+  private void parseInto(final Map<String, long[]> result, final MergeMode mode)
+      throws IOException {
+    Section s;
+    while ((s = parseSection()) != null) {
+      s.addTo(result, mode);
+    }
+  }
+
+  /**
+   * Parse records up to the next file record or the end. Return the
+   * coverage of the file record the parser started on, or {@code null} if
+   * it did not start on a file record.
+   */
+  private Section parseSection() throws IOException {
+    String fileName = null;
+    FileLines lines = null;
+
+    while (pos < end) {
+      int lineEnd = lineEnd(pos);
+
+      if (startsWith(data, pos, lineEnd, Gcov.FILE_MARK_BYTES)) {
+        if (fileName != null) {
+          // leave the next file record for the next call
+          break;
+        }
+        fileName = decode(pos + Gcov.FILE_MARK_BYTES.length, lineEnd);
+        lines = new FileLines();
+      } else if (startsWith(data, pos, lineEnd, Gcov.LINE_MARK_BYTES)) {
+        if (lines == null) {
+          unsupported(lineEnd, "Line data before the first file record: ");
+        } else {
+          parseLineCount(pos + Gcov.LINE_MARK_BYTES.length, lineEnd, lines);
+        }
+      } else if (startsWith(data, pos, lineEnd, Gcov.FUNCTION_MARK_BYTES)
+          || startsWith(data, pos, lineEnd, Gcov.BRANCH_MARK_BYTES)) {
+        // read by Gcov.loadFunctions() and Gcov.loadBranches()
+      } else if (pos != lineEnd) {
+        unsupported(lineEnd, "Line contains data that is not yet supported: ");
+      }
+
+      pos = skipNewline(lineEnd);
+    }
+
+    if (fileName == null) {
+      return null;
+    }
+    return new Section(fileName, lines.toArray());
+  }
+
+  private void unsupported(final int lineEnd, final String message) throws IOException {
+    if (!lenient) {
+      throw new IOException(message + decode(pos, lineEnd));
+    }
+  }
+
+  /** Parse {@code line,count}, ignoring any further fields. */
+  private void parseLineCount(final int start, final int lineEnd, final FileLines lines)
+      throws IOException {
+    pos = start;
+    long lineNo = parseLong(lineEnd);
+    if (pos >= lineEnd || data.get(pos) != ',') {
+      throw new IOException("Malformed lcount record: " + decode(start, lineEnd));
+    }
+    pos += 1;
+    long count = parseLong(lineEnd);
+
+    if (lineNo < 1 || lineNo > Integer.MAX_VALUE) {
+      throw new IOException("Line number out of range: " + decode(start, lineEnd));
+    }
+    lines.set((int) lineNo, count);
+  }
+
+  private long parseLong(final int limit) throws IOException {
+    int start = pos;
+    boolean negative = false;
+    if (pos < limit && data.get(pos) == '-') {
+      negative = true;
+      pos += 1;
+    }
+
+    long value = 0;
+    int digitsStart = pos;
+    while (pos < limit) {
+      int d = data.get(pos) - '0';
+      if (d < 0 || d > 9) {
+        break;
+      }
+      if (value > (Long.MAX_VALUE - d) / 10) {
+        throw new IOException("Number out of range: " + decode(start, limit));
+      }
+      value = value * 10 + d;
+      pos += 1;
+    }
+
+    if (pos == digitsStart) {
+      throw new IOException("Malformed number: " + decode(start, limit));
+    }
+    return negative ? -value : value;
+  }
+
+  /** Return the index of the line's end, excluding a trailing '\r'. */
+  private int lineEnd(final int from) {
+    int i = from;
+    while (i < end && data.get(i) != '\n') {
+      i += 1;
+    }
+    if (i > from && data.get(i - 1) == '\r') {
+      return i - 1;
+    }
+    return i;
+  }
+
+  private int skipNewline(final int lineEnd) {
+    int i = lineEnd;
+    if (i < end && data.get(i) == '\r') {
+      i += 1;
+    }
+    if (i < end && data.get(i) == '\n') {
+      i += 1;
+    }
+    return i;
+  }
+
+  private static boolean startsWith(final ByteBuffer data, final int from,
+      final int limit, final byte[] prefix) {
+    if (limit - from < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i += 1) {
+      if (data.get(from + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String decode(final int from, final int to) {
+    byte[] bytes = new byte[to - from];
+    for (int i = 0; i < bytes.length; i += 1) {
+      bytes[i] = data.get(from + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Growable coverage array for the file that is currently being parsed. */
+  static final class FileLines {
+    private long[] lines    = Gcov.newLines(64);
+    private int    numLines = 0;
+
+    void set(final int lineNo, final long count) {
+      if (lineNo > lines.length) {
+        lines = Gcov.ensureLength(lines, Math.max(lineNo, lines.length * 2));
+      }
+      lines[lineNo - 1] = count;
+      numLines = Math.max(numLines, lineNo);
+    }
+
+    long[] toArray() {
+      return Arrays.copyOf(lines, numLines);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package gcov;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An immutable set of 0-based line slots, stored as sorted runs of
+ * consecutive lines. The lines a test covers mostly form long runs, so this
+ * takes a fraction of the memory of a bitmap or an array of lines.
+ */
+public final class LineSet {
+  public static final LineSet EMPTY = new LineSet(new int[0]);
+
+  /** Start (inclusive) and end (exclusive) of each run, in order. */
+  private final int[] runs;
+
+  private LineSet(final int[] runs) {
+    this.runs = runs;
+  }
+
+  public static LineSet of(final BitSet lines) {
+    int[] runs = new int[8];
+    int n = 0;
+    int start = lines.nextSetBit(0);
+    while (start >= 0) {
+      int end = lines.nextClearBit(start);
+      if (n + 2 > runs.length) {
+        runs = Arrays.copyOf(runs, runs.length * 2);
+      }
+      runs[n]     = start;
+      runs[n + 1] = end;
+      n += 2;
+      start = lines.nextSetBit(end);
+    }
+    return n == 0 ? EMPTY : new LineSet(Arrays.copyOf(runs, n));
+  }
+
+  /** Create a set from start and end pairs, as returned by {@link #getRuns()}. */
+  static LineSet ofRuns(final int[] runs) {
+    return runs.length == 0 ? EMPTY : new LineSet(runs);
+  }
+
+  int[] getRuns() {
+    return runs;
+  }
+
+  public boolean isEmpty() {
+    return runs.length == 0;
+  }
+
+  public boolean contains(final int line) {
+    return intersects(line, line + 1);
+  }
+
+  /** Whether any line in {@code [from, to)} is in the set. */
+  public boolean intersects(final int from, final int to) {
+    // find the first run that ends after from
+    int lo = 0;
+    int hi = runs.length / 2;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (runs[2 * mid + 1] <= from) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo < runs.length / 2 && runs[2 * lo] < to;
+  }
+
+  /** Whether any line of {@code lines} is in the set. */
+  public boolean intersects(final LineSet lines) {
+    for (int i = 0; i < lines.runs.length; i += 2) {
+      if (intersects(lines.runs[i], lines.runs[i + 1])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int cardinality() {
+    int n = 0;
+    for (int i = 0; i < runs.length; i += 2) {
+      n += runs[i + 1] - runs[i];
+    }
+    return n;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    return o instanceof LineSet && Arrays.equals(runs, ((LineSet) o).runs);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(runs);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder("[");
+    for (int i = 0; i < runs.length; i += 2) {
+      if (i > 0) {
+        b.append(", ");
+      }
+      b.append(runs[i]);
+      if (runs[i + 1] - runs[i] > 1) {
+        b.append('-').append(runs[i + 1] - 1);
+      }
+    }
+    return b.append(']').toString();
+  }
+}
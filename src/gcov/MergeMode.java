@@ -0,0 +1,163 @@
+package gcov;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * How the counts of a line are combined when merging coverage data.
+ * Lines that are {@link Gcov#NO_CODE} in one input take the other's value.
+ */
+public enum MergeMode {
+  /** Add the counts, for instance for shards of one test run. */
+  SUM,
+
+  /** Keep the larger count, for instance for repeated runs of the same tests. */
+  MAX,
+
+  /** Only keep whether a line was executed, as 1 or 0. */
+  HIT;
+
+  long combine(final long a, final long b) {
+    switch (this) {
+      case SUM:
+        long sum = a + b;
+        // saturate instead of overflowing
+        return sum < 0 ? Long.MAX_VALUE : sum;
+      case MAX:
+        return Math.max(a, b);
+      default:
+        return (a > 0 || b > 0) ? 1 : 0;
+    }
+  }
+
+  /**
+   * Merge {@code from} into {@code into}. The result has the length of the
+   * longer array, and is {@code into} if it is long enough.
+   */
+  public long[] merge(final long[] into, final long[] from) {
+    long[] result = Gcov.ensureLength(into, from.length);
+    for (int i = 0; i < from.length; i += 1) {
+      long f = from[i];
+      if (f == Gcov.NO_CODE) {
+        continue;
+      }
+      if (result[i] == Gcov.NO_CODE) {
+        result[i] = this == HIT ? Math.min(f, 1) : f;
+      } else {
+        result[i] = combine(result[i], f);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Merge all files of {@code from} into {@code into}. Arrays of
+   * {@code into} are modified in place, arrays of {@code from} may be
+   * added to it.
+   */
+  public void merge(final Map<String, long[]> into, final Map<String, long[]> from) {
+    for (Entry<String, long[]> e : from.entrySet()) {
+      long[] existing = into.get(e.getKey());
+      if (existing == null) {
+        into.put(e.getKey(), normalize(e.getValue()));
+      } else {
+        into.put(e.getKey(), merge(existing, e.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Merge the function records of {@code from} into {@code into}. Records
+   * for the same function, by line and name, are combined.
+   */
+  public void mergeFunctions(final Map<String, List<FunctionRecord>> into,
+      final Map<String, List<FunctionRecord>> from) {
+    for (Entry<String, List<FunctionRecord>> e : from.entrySet()) {
+      List<FunctionRecord> result = new ArrayList<>();
+      Map<String, Integer> index = new HashMap<>();
+      for (FunctionRecord r : into.getOrDefault(e.getKey(), new ArrayList<>())) {
+        index.put(r.line + "," + r.name, result.size());
+        result.add(r);
+      }
+
+      for (FunctionRecord f : e.getValue()) {
+        Integer i = index.putIfAbsent(f.line + "," + f.name, result.size());
+        if (i == null) {
+          result.add(this == HIT
+              ? new FunctionRecord(f.line, Math.min(f.count, 1), f.name) : f);
+        } else {
+          FunctionRecord r = result.get(i);
+          result.set(i, new FunctionRecord(r.line, combine(r.count, f.count), r.name));
+        }
+      }
+      into.put(e.getKey(), result);
+    }
+  }
+
+  /**
+   * Merge the branch records of {@code from} into {@code into}. Records for
+   * the same outcome of the same site are combined.
+   */
+  public void mergeBranches(final Map<String, List<BranchRecord>> into,
+      final Map<String, List<BranchRecord>> from) {
+    for (Entry<String, List<BranchRecord>> e : from.entrySet()) {
+      List<BranchRecord> result = new ArrayList<>();
+      Map<String, Integer> index = new HashMap<>();
+      for (BranchRecord r : into.getOrDefault(e.getKey(), new ArrayList<>())) {
+        index.put(r.line + "," + r.block + "," + r.branch, result.size());
+        result.add(r);
+      }
+
+      for (BranchRecord b : e.getValue()) {
+        Integer i = index.putIfAbsent(b.line + "," + b.block + "," + b.branch, result.size());
+        if (i == null) {
+          result.add(this == HIT
+              ? new BranchRecord(b.line, b.block, b.branch, Math.min(b.count, 1)) : b);
+        } else {
+          BranchRecord r = result.get(i);
+          result.set(i, new BranchRecord(r.line, r.block, r.branch, combine(r.count, b.count)));
+        }
+      }
+      into.put(e.getKey(), result);
+    }
+  }
+
+  /**
+   * Merge the call edges {@code from} into {@code into}, and return the
+   * result. Edges between the same functions are combined.
+   */
+  public List<CallEdge> mergeCallEdges(final List<CallEdge> into,
+      final List<CallEdge> from) {
+    List<CallEdge> result = new ArrayList<>(into);
+    Map<String, Integer> index = new HashMap<>();
+    for (int i = 0; i < result.size(); i += 1) {
+      index.put(result.get(i).key(), i);
+    }
+
+    for (CallEdge e : from) {
+      Integer i = index.putIfAbsent(e.key(), result.size());
+      if (i == null) {
+        result.add(this == HIT ? e.withCount(Math.min(e.count, 1)) : e);
+      } else {
+        CallEdge r = result.get(i);
+        result.set(i, r.withCount(combine(r.count, e.count)));
+      }
+    }
+    return result;
+  }
+
+  /** Apply this mode to a single input, i.e., clamp counts for {@link #HIT}. */
+  public long[] normalize(final long[] lines) {
+    if (this == HIT) {
+      for (int i = 0; i < lines.length; i += 1) {
+        if (lines[i] != Gcov.NO_CODE) {
+          lines[i] = Math.min(lines[i], 1);
+        }
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,128 @@
+package gcov;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock for updating a coverage file, shared between processes.
+ *
+ * <p>The lock is taken on a separate {@code <file>.lock} file, because the
+ * coverage file itself is replaced on every write. File locks are held per
+ * process, so threads of the same process are serialized by a local lock
+ * first.
+ *
+ * <p>The holder deletes the lock file before releasing it. A process that
+ * opened the file before it was deleted may still lock it, so after locking,
+ * a random token is written to the locked file and read back through its
+ * path. If the path no longer leads to the locked file, the lock is retried
+ * on a new one. Closing any channel of a file releases the locks of the
+ * process on it, so the channel that reads the token stays open until the
+ * lock is released.
+ */
+final class OutputLock implements Closeable {
+
+  static final String EXTENSION = ".lock";
+
+  private static final int TOKEN_SIZE = 16;
+
+  private static final ReentrantLock LOCAL = new ReentrantLock();
+
+  private final Path        lockFile;
+  private final FileChannel channel;
+  private final FileChannel check;
+  private final FileLock    lock;
+
+  private OutputLock(final Path lockFile, final FileChannel channel,
+      final FileChannel check, final FileLock lock) {
+    this.lockFile = lockFile;
+    this.channel  = channel;
+    this.check    = check;
+    this.lock     = lock;
+  }
+
+  /** Block until the lock for {@code coverageFile} is acquired. */
+  static OutputLock acquire(final Path coverageFile) throws IOException {
+    Path path = coverageFile.toAbsolutePath();
+    Path lockFile = path.resolveSibling(path.getFileName() + EXTENSION);
+
+    LOCAL.lock();
+    try {
+      while (true) {
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+          FileLock lock = channel.lock();
+          FileChannel check = openIfCurrent(channel, lockFile);
+          if (check != null) {
+            return new OutputLock(lockFile, channel, check, lock);
+          }
+        } catch (IOException | RuntimeException e) {
+          channel.close();
+          throw e;
+        }
+        channel.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOCAL.unlock();
+      throw e;
+    }
+  }
+
+  /**
+   * If {@code lockFile} is still the file of {@code channel}, return a second
+   * channel on it, otherwise {@code null}.
+   */
+  private static FileChannel openIfCurrent(final FileChannel channel, final Path lockFile)
+      throws IOException {
+    byte[] token = new byte[TOKEN_SIZE];
+    ThreadLocalRandom.current().nextBytes(token);
+    channel.truncate(0);
+    channel.write(ByteBuffer.wrap(token), 0);
+
+    FileChannel check;
+    try {
+      check = FileChannel.open(lockFile, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+
+    ByteBuffer content = ByteBuffer.allocate(TOKEN_SIZE + 1);
+    while (content.hasRemaining() && check.read(content, content.position()) > 0) {
+      continue;
+    }
+    if (content.position() == TOKEN_SIZE
+        && Arrays.equals(token, Arrays.copyOf(content.array(), TOKEN_SIZE))) {
+      return check;
+    }
+    // a different file, closing it does not affect the lock
+    check.close();
+    return null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      try {
+        Files.deleteIfExists(lockFile);
+      } catch (IOException e) {
+        // for instance on Windows, where open files cannot be deleted,
+        // the file stays, which is safe, see isCurrent()
+      }
+      lock.release();
+      channel.close();
+      check.close();
+    } finally {
+      LOCAL.unlock();
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package gcov;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The lines covered by each test, for test-impact analysis: given the lines
+ * that changed, {@link #selectTests(Map)} returns the tests that cover any
+ * of them.
+ *
+ * <p>Lines are stored as {@link LineSet}s, and files use the following
+ * encoding, with all numbers as unsigned varints:
+ * <pre>
+ *   magic    4 bytes  "TIMP"
+ *   version  1 byte
+ *   paths    count, then each path in modified UTF-8
+ *   tests    count, then for each test its id in modified UTF-8, the number
+ *            of files, and for each file the path index, the number of
+ *            runs, and each run as the gap to the previous run and its
+ *            length
+ * </pre>
+ */
+public final class TestCoverage {
+
+  public static final String EXTENSION = ".tests";
+
+  static final int VERSION = 1;
+
+  private static final byte[] MAGIC = {'T', 'I', 'M', 'P'};
+
+  private final Map<String, Map<String, LineSet>> tests = new LinkedHashMap<>();
+
+  /** Shares the path strings between tests. */
+  private final Map<String, String> paths = new HashMap<>();
+
+  /**
+   * Record the lines covered by {@code test}, replacing any earlier record
+   * of the same test. Files without covered lines are dropped.
+   */
+  public synchronized void add(final String test, final Map<String, LineSet> lines) {
+    Map<String, LineSet> files = new HashMap<>();
+    for (Entry<String, LineSet> e : lines.entrySet()) {
+      if (!e.getValue().isEmpty()) {
+        files.put(paths.computeIfAbsent(e.getKey(), p -> p), e.getValue());
+      }
+    }
+    tests.put(test, files);
+  }
+
+  /** Add the tests of {@code other}, replacing those with the same id. */
+  public synchronized void addAll(final TestCoverage other) {
+    Map<String, Map<String, LineSet>> copy;
+    synchronized (other) {
+      copy = new LinkedHashMap<>(other.tests);
+    }
+    for (Entry<String, Map<String, LineSet>> e : copy.entrySet()) {
+      add(e.getKey(), e.getValue());
+    }
+  }
+
+  public synchronized Set<String> getTests() {
+    return new TreeSet<>(tests.keySet());
+  }
+
+  /** Return the lines covered by {@code test}, or {@code null}. */
+  public synchronized Map<String, LineSet> getLines(final String test) {
+    return tests.get(test);
+  }
+
+  /**
+   * Return the tests that cover any of the changed lines. A {@code null}
+   * line set stands for a change anywhere in the file.
+   */
+  public synchronized Set<String> selectTests(final Map<String, LineSet> changes) {
+    Set<String> selected = new TreeSet<>();
+    for (Entry<String, Map<String, LineSet>> test : tests.entrySet()) {
+      for (Entry<String, LineSet> change : changes.entrySet()) {
+        LineSet covered = test.getValue().get(change.getKey());
+        if (covered != null
+            && (change.getValue() == null || covered.intersects(change.getValue()))) {
+          selected.add(test.getKey());
+          break;
+        }
+      }
+    }
+    return selected;
+  }
+
+  /** Write the data to {@code file}, replacing it atomically. */
+  public synchronized void write(final Path file) throws IOException {
+    Path target = file.toAbsolutePath();
+    Path tmp = Gcov.createTempFile(target);
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        write(out);
+      }
+      Gcov.moveAtomically(tmp, target);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+  private void write(final DataOutputStream out) throws IOException {
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+
+    Map<String, Integer> index = new HashMap<>();
+    List<String> table = new ArrayList<>();
+    for (Map<String, LineSet> files : tests.values()) {
+      for (String path : files.keySet()) {
+        if (index.putIfAbsent(path, table.size()) == null) {
+          table.add(path);
+        }
+      }
+    }
+    putVarint(out, table.size());
+    for (String path : table) {
+      out.writeUTF(path);
+    }
+
+    putVarint(out, tests.size());
+    for (Entry<String, Map<String, LineSet>> test : tests.entrySet()) {
+      out.writeUTF(test.getKey());
+      putVarint(out, test.getValue().size());
+      for (Entry<String, LineSet> file : test.getValue().entrySet()) {
+        putVarint(out, index.get(file.getKey()));
+        int[] runs = file.getValue().getRuns();
+        putVarint(out, runs.length / 2);
+        int previousEnd = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+          putVarint(out, runs[i] - previousEnd);
+          putVarint(out, runs[i + 1] - runs[i]);
+          previousEnd = runs[i + 1];
+        }
+      }
+    }
+  }
+
+  public static TestCoverage load(final Path file) throws IOException {
+    TestCoverage result = new TestCoverage();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file)))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      int version = in.readUnsignedByte();
+      if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+        throw new IOException("Not a test coverage file of version " + VERSION + ": " + file);
+      }
+
+      String[] table = new String[getVarint(in)];
+      for (int i = 0; i < table.length; i += 1) {
+        table[i] = in.readUTF();
+      }
+
+      int numTests = getVarint(in);
+      for (int t = 0; t < numTests; t += 1) {
+        String test = in.readUTF();
+        int numFiles = getVarint(in);
+        Map<String, LineSet> files = new HashMap<>();
+        for (int f = 0; f < numFiles; f += 1) {
+          String path = table[getVarint(in)];
+          int[] runs = new int[2 * getVarint(in)];
+          int previousEnd = 0;
+          for (int i = 0; i < runs.length; i += 2) {
+            runs[i]     = previousEnd + getVarint(in);
+            runs[i + 1] = runs[i] + getVarint(in);
+            previousEnd = runs[i + 1];
+          }
+          files.put(path, LineSet.ofRuns(runs));
+        }
+        result.add(test, files);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Add the tests of {@code coverage} to {@code file}, which may be shared
+   * with other processes, see {@link CoverageFormat#update}.
+   */
+  public static void update(final TestCoverage coverage, final Path file)
+      throws IOException {
+    OutputLock lock = OutputLock.acquire(file);
+    try {
+      TestCoverage data = Files.exists(file) ? load(file) : new TestCoverage();
+      data.addAll(coverage);
+      data.write(file);
+    } finally {
+      lock.close();
+    }
+  }
+
+  private static void putVarint(final DataOutputStream out, final int value)
+      throws IOException {
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int getVarint(final DataInputStream in) throws IOException {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Parse a change given as {@code path}, {@code path:line}, or
+   * {@code path:from-to}, with 1-based, inclusive line numbers, and add it
+   * to {@code changes}.
+   *
+   * @throws IllegalArgumentException if the lines are not a range of
+   *           positive line numbers
+   */
+  static void parseChange(final String change, final Map<String, BitSet> changes) {
+    int colon = change.lastIndexOf(':');
+    if (colon < 0 || !change.substring(colon + 1).matches("\\d+(-\\d+)?")) {
+      changes.put(change, null);
+      return;
+    }
+
+    String path = change.substring(0, colon);
+    String[] range = change.substring(colon + 1).split("-");
+    int from;
+    int to;
+    try {
+      from = Integer.parseInt(range[0]);
+      to = range.length > 1 ? Integer.parseInt(range[1]) : from;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Line number out of range: " + change);
+    }
+    if (from < 1 || to < from) {
+      throw new IllegalArgumentException("Invalid line range: " + change);
+    }
+
+    if (changes.containsKey(path) && changes.get(path) == null) {
+      return;
+    }
+    changes.computeIfAbsent(path, p -> new BitSet()).set(from - 1, to);
+  }
+
+  private static final String USAGE =
+      "Usage: java gcov.TestCoverage testsFile path[:line[-line]]...";
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 2) {
+      // Checkstyle: stop
+      System.out.println(USAGE);
+      // Checkstyle: resume
+      return;
+    }
+
+    Map<String, BitSet> changed = new HashMap<>();
+    try {
+      for (int i = 1; i < args.length; i += 1) {
+        parseChange(args[i], changed);
+      }
+    } catch (IllegalArgumentException e) {
+      // Checkstyle: stop
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      // Checkstyle: resume
+      System.exit(1);
+    }
+    Map<String, LineSet> changes = new HashMap<>();
+    for (Entry<String, BitSet> e : changed.entrySet()) {
+      changes.put(e.getKey(), e.getValue() == null ? null : LineSet.of(e.getValue()));
+    }
+
+    for (String test : load(Paths.get(args[0])).selectTests(changes)) {
+      // Checkstyle: stop
+      System.out.println(test);
+      // Checkstyle: resume
+    }
+  }
+}
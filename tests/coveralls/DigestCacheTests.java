@@ -0,0 +1,57 @@
+package coveralls;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class DigestCacheTests {
+
+  @Test
+  public void digestIsMd5() throws Exception {
+    Path file = Files.createTempFile("digest", ".sl");
+    Files.write(file, "abc".getBytes(StandardCharsets.US_ASCII));
+    assertEquals("900150983cd24fb0d6963f7d28e17f72", new DigestCache().getDigest(file));
+  }
+
+  @Test
+  public void mappedFilesHaveTheSameDigest() throws Exception {
+    byte[] data = new byte[DigestCache.MAP_THRESHOLD + 12345];
+    new Random(1).nextBytes(data);
+    Path file = Files.createTempFile("digest", ".sl");
+    Files.write(file, data);
+
+    String expected = String.format("%032x",
+        new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)));
+    assertEquals(expected, DigestCache.md5(file));
+  }
+
+  @Test
+  public void unchangedFilesAreNotReadAgain() throws Exception {
+    Path dir = Files.createTempDirectory("digest");
+    Path cacheFile = dir.resolve("digests");
+    Path file = dir.resolve("a.sl");
+    Files.write(file, "abc".getBytes(StandardCharsets.US_ASCII));
+    FileTime time = Files.getLastModifiedTime(file);
+
+    DigestCache cache = new DigestCache(cacheFile);
+    String digest = cache.getDigest(file);
+    cache.save();
+
+    // same size and time, so the cached digest is used
+    Files.write(file, "xyz".getBytes(StandardCharsets.US_ASCII));
+    Files.setLastModifiedTime(file, time);
+    assertEquals(digest, new DigestCache(cacheFile).getDigest(file));
+
+    Files.setLastModifiedTime(file, FileTime.fromMillis(time.toMillis() + 1000));
+    assertEquals(DigestCache.md5(file), new DigestCache(cacheFile).getDigest(file));
+  }
+}
@@ -0,0 +1,112 @@
+package coveralls;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import gcov.BinaryCoverage;
+import gcov.BranchRecord;
+import gcov.FunctionRecord;
+import gcov.Gcov;
+import gcov.MergeMode;
+
+
+public class MergeTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  private Path[] writeShards(final Path dir) throws IOException {
+    Map<String, long[]> a = new HashMap<>();
+    a.put("a.sl", new long[] {N, 2, 0});
+    a.put("b.sl", new long[] {1});
+
+    Map<String, long[]> b = new HashMap<>();
+    b.put("a.sl", new long[] {N, 3, 0, N, 4});
+
+    Map<String, long[]> c = new HashMap<>();
+    c.put("a.sl", new long[] {7});
+
+    Path[] files = {dir.resolve("a.gcov"), dir.resolve("b" + BinaryCoverage.EXTENSION),
+        dir.resolve("c.gcov")};
+    Gcov.write(a, files[0]);
+    BinaryCoverage.write(b, files[1], false);
+    Gcov.write(c, files[2]);
+    return files;
+  }
+
+  @Test
+  public void mergeShardsWithDifferentLineCounts() throws IOException {
+    Path dir = Files.createTempDirectory("merge");
+    Path[] files = writeShards(dir);
+
+    Map<String, long[]> sum = Merge.merge(files, MergeMode.SUM);
+    assertArrayEquals(new long[] {7, 5, 0, N, 4}, sum.get("a.sl"));
+    assertArrayEquals(new long[] {1}, sum.get("b.sl"));
+
+    Map<String, long[]> max = Merge.merge(files, MergeMode.MAX);
+    assertArrayEquals(new long[] {7, 3, 0, N, 4}, max.get("a.sl"));
+
+    Map<String, long[]> hit = Merge.merge(files, MergeMode.HIT);
+    assertArrayEquals(new long[] {1, 1, 0, N, 1}, hit.get("a.sl"));
+  }
+
+  @Test
+  public void mainWritesMergedFile() throws IOException {
+    Path dir = Files.createTempDirectory("merge");
+    Path[] files = writeShards(dir);
+    Path out = dir.resolve("merged.gcov");
+
+    Merge.main(new String[] {"--max", out.toString(), files[0].toString(),
+        files[1].toString(), files[2].toString()});
+
+    assertArrayEquals(new long[] {7, 3, 0, N, 4}, Gcov.load(out).get("a.sl"));
+  }
+
+  @Test
+  public void functionAndBranchRecordsAreMerged() throws IOException {
+    Path dir = Files.createTempDirectory("merge");
+    Path[] files = {dir.resolve("a.gcov"), dir.resolve("b.gcov")};
+
+    Map<String, List<FunctionRecord>> functions = new HashMap<>();
+    Map<String, List<BranchRecord>> branches = new HashMap<>();
+    functions.put("a.sl", Arrays.asList(new FunctionRecord(1, 2, "main")));
+    branches.put("a.sl", Arrays.asList(new BranchRecord(2, 0, 0, 2),
+        new BranchRecord(2, 0, 1, 0)));
+    Gcov.write(lines("a.sl", 2, 2), functions, branches, files[0]);
+
+    functions.put("a.sl", Arrays.asList(new FunctionRecord(1, 3, "main"),
+        new FunctionRecord(3, 1, "helper")));
+    branches.put("a.sl", Arrays.asList(new BranchRecord(2, 0, 0, 1),
+        new BranchRecord(2, 0, 1, 2)));
+    Gcov.write(lines("a.sl", 3, 3, 1), functions, branches, files[1]);
+
+    Merge.Result sum = Merge.mergeAll(files, MergeMode.SUM);
+    assertEquals(Arrays.asList(new FunctionRecord(1, 5, "main"),
+        new FunctionRecord(3, 1, "helper")), sum.functions.get("a.sl"));
+    assertEquals(Arrays.asList(new BranchRecord(2, 0, 0, 3),
+        new BranchRecord(2, 0, 1, 2)), sum.branches.get("a.sl"));
+
+    Path out = dir.resolve("merged.gcov");
+    Merge.main(new String[] {"--hit", out.toString(), files[0].toString(),
+        files[1].toString()});
+    assertEquals(Arrays.asList(new FunctionRecord(1, 1, "main"),
+        new FunctionRecord(3, 1, "helper")), Gcov.loadFunctions(out).get("a.sl"));
+    assertEquals(Arrays.asList(new BranchRecord(2, 0, 0, 1),
+        new BranchRecord(2, 0, 1, 1)), Gcov.loadBranches(out).get("a.sl"));
+  }
+
+  private static Map<String, long[]> lines(final String file, final long... counts) {
+    Map<String, long[]> map = new HashMap<>();
+    map.put(file, counts);
+    return map;
+  }
+}
@@ -0,0 +1,200 @@
+package coveralls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import gcov.Gcov;
+
+
+public class ParallelUploadTests {
+
+  private static final Pattern FLAG = Pattern.compile("\"flag_name\":\"(part-\\d+)\"");
+
+  private HttpServer      server;
+  private ExecutorService executor;
+  private String          base;
+
+  /** Requests to fail for each job before accepting it. */
+  private volatile int failuresPerJob;
+  private volatile int failuresForDone;
+  private volatile int status = 503;
+
+  private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+  private final List<String> accepted = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger doneCalls = new AtomicInteger();
+  private volatile int jobsAcceptedBeforeDone = -1;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    executor = Executors.newFixedThreadPool(8);
+    server.setExecutor(executor);
+
+    server.createContext("/api/v1/jobs", exchange -> {
+      String body = readBody(exchange);
+      Matcher m = FLAG.matcher(body);
+      String job = m.find() ? m.group(1) : "?";
+      sleep(20);
+      if (attempts.computeIfAbsent(job, j -> new AtomicInteger()).incrementAndGet()
+          <= failuresPerJob) {
+        respond(exchange, status, "{\"error\":\"injected\"}");
+      } else {
+        accepted.add(job);
+        respond(exchange, 200, "{\"message\":\"ok\"}");
+      }
+    });
+    server.createContext("/webhook", exchange -> {
+      readBody(exchange);
+      if (doneCalls.incrementAndGet() <= failuresForDone) {
+        respond(exchange, 503, "{}");
+      } else {
+        jobsAcceptedBeforeDone = accepted.size();
+        respond(exchange, 200, "{\"done\":true}");
+      }
+    });
+    server.start();
+    base = "http://localhost:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private static String readBody(final HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    exchange.getRequestBody().transferTo(body);
+    return body.toString(StandardCharsets.UTF_8);
+  }
+
+  private static void respond(final HttpExchange exchange, final int code, final String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private ParallelUpload upload(final int maxAttempts) {
+    return new ParallelUpload(new Uploader(base + "/api/v1/jobs", false),
+        new Uploader(base + "/webhook?repo_token=t", false), 3, maxAttempts, 1);
+  }
+
+  /** Spool a report of {@code numFiles} files below the current directory. */
+  private Path spool(final int numFiles, final int filesPerJob) throws IOException {
+    Path sources = Files.createTempDirectory(Paths.get("").toAbsolutePath(), "spool-sources");
+    Map<String, long[]> coverage = new HashMap<>();
+    for (int i = 0; i < numFiles; i += 1) {
+      Path f = sources.resolve("f" + i + ".sl");
+      Files.write(f, ("line " + i).getBytes(StandardCharsets.UTF_8));
+      coverage.put(f.toString(), new long[] {Gcov.NO_CODE, i});
+    }
+
+    Path spool = Files.createTempDirectory("spool");
+    new Report("t", new DigestCache()).spoolJobs(coverage, new HashMap<>(), new HashMap<>(),
+        spool, filesPerJob, "42");
+
+    for (int i = 0; i < numFiles; i += 1) {
+      Files.delete(sources.resolve("f" + i + ".sl"));
+    }
+    Files.delete(sources);
+    return spool;
+  }
+
+  private static long jobFiles(final Path spool) throws IOException {
+    return Files.list(spool).filter(p -> p.getFileName().toString()
+        .startsWith(ParallelUpload.JOB_PREFIX)).count();
+  }
+
+  @Test
+  public void reportIsSplitIntoParallelJobs() throws Exception {
+    Path spool = spool(10, 3);
+    assertEquals(4, jobFiles(spool));
+
+    String job = new String(Files.readAllBytes(spool.resolve("job-00003.json")),
+        StandardCharsets.UTF_8);
+    assertTrue(job.contains("\"parallel\":true"));
+    assertTrue(job.contains("\"service_number\":\"42\""));
+    assertTrue(job.contains("\"flag_name\":\"part-3\""));
+    assertTrue(Files.exists(spool.resolve(ParallelUpload.DONE_FILE)));
+  }
+
+  @Test
+  public void transientFailuresAreRetried() throws Exception {
+    failuresPerJob  = 2;
+    failuresForDone = 1;
+    Path spool = spool(10, 2);
+
+    assertTrue(upload(5).run(spool));
+    assertEquals(5, accepted.size());
+    assertEquals(5, jobsAcceptedBeforeDone);
+    assertEquals(0, Files.list(spool).count());
+  }
+
+  @Test
+  public void failedUploadsCanBeResumed() throws Exception {
+    failuresPerJob = 10;
+    Path spool = spool(4, 2);
+
+    assertFalse(upload(2).run(spool));
+    assertEquals(0, doneCalls.get());
+    assertEquals(2, jobFiles(spool));
+
+    failuresPerJob = 0;
+    attempts.clear();
+    assertTrue(upload(2).run(spool));
+    assertEquals(2, accepted.size());
+    assertEquals(1, doneCalls.get());
+    assertEquals(0, Files.list(spool).count());
+  }
+
+  @Test
+  public void clientErrorsAreNotRetried() throws Exception {
+    failuresPerJob = 1;
+    status = 422;
+    Path spool = spool(1, 1);
+
+    assertFalse(upload(5).run(spool));
+    assertEquals(1, attempts.get("part-0").get());
+    assertEquals(1, jobFiles(spool));
+  }
+}
@@ -0,0 +1,109 @@
+package coveralls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+
+public class UploaderTests {
+
+  private HttpServer server;
+  private String     url;
+
+  private volatile String received;
+  private volatile String encoding;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/v1/jobs", exchange -> {
+      encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      InputStream in = exchange.getRequestBody();
+      if ("gzip".equals(encoding)) {
+        in = new GZIPInputStream(in);
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      in.transferTo(body);
+      received = body.toString(StandardCharsets.UTF_8);
+
+      byte[] response = "{\"message\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/api/v1/jobs";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private void checkUpload(final boolean gzip) throws IOException {
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 100_000; i += 1) {
+      large.append(i).append(',');
+    }
+
+    String response = new Uploader(url, gzip).send("json_file", "application/json",
+        out -> out.write("{\"data\":\"" + large + "\"}")).join();
+
+    assertEquals("{\"message\":\"ok\"}", response);
+    assertEquals(gzip ? "gzip" : null, encoding);
+    assertTrue(received.contains("name=\"json_file\""));
+    assertTrue(received.contains("{\"data\":\"" + large + "\"}"));
+    assertTrue(received.trim().endsWith("--"));
+  }
+
+  @Test
+  public void uploadsPlain() throws IOException {
+    checkUpload(false);
+  }
+
+  @Test
+  public void uploadsGzip() throws IOException {
+    checkUpload(true);
+  }
+
+  @Test
+  public void failureToWriteFailsTheUpload() throws IOException {
+    try {
+      new Uploader(url, false).send("json_file", "application/json", out -> {
+        out.write("{");
+        throw new IOException("broken");
+      }).join();
+      fail("expected the upload to fail");
+    } catch (CompletionException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void jsonIsEscaped() throws IOException {
+    StringWriter out = new StringWriter();
+    new JsonWriter(out).beginObject()
+        .name("a").value("x\"y\\z\n\u0001")
+        .name("b").beginArray().value(1).nullValue().value((String) null).endArray()
+        .endObject();
+    assertEquals("{\"a\":\"x\\\"y\\\\z\\n\\u0001\",\"b\":[1,null,null]}", out.toString());
+  }
+}
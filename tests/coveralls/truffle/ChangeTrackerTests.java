@@ -0,0 +1,105 @@
+package coveralls.truffle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oracle.truffle.api.source.Source;
+import com.oracle.truffle.api.source.SourceSection;
+
+import gcov.Gcov;
+import gcov.LineSet;
+
+
+public class ChangeTrackerTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  private Coverage       coverage;
+  private SourceCoverage source;
+  private Counter        first;
+  private Counter        third;
+
+  @Before
+  public void setUp() {
+    coverage = new Coverage();
+    Source s = Source.newBuilder("sl", "a\nb\nc\n", "test.sl").build();
+    source = coverage.getSourceCoverage(s);
+    first = addStatement(s.createSection(1));
+    third = addStatement(s.createSection(3));
+  }
+
+  private Counter addStatement(final SourceSection section) {
+    source.addStatement(section);
+    return source.getOrCreate(section, Counter::new);
+  }
+
+  private void execute(final Counter counter) {
+    counter.inc();
+    counter.source.markChanged();
+  }
+
+  @Test
+  public void firstCallReturnsAllLinesWithCode() {
+    execute(first);
+    Map<String, long[]> changed = new ChangeTracker(coverage).changed();
+    assertArrayEquals(new long[] {1, N, 0}, changed.get("test.sl"));
+  }
+
+  @Test
+  public void onlyChangedLinesAreReturned() {
+    ChangeTracker tracker = new ChangeTracker(coverage);
+    tracker.changed();
+    assertTrue(tracker.changed().isEmpty());
+
+    execute(third);
+    execute(third);
+    assertArrayEquals(new long[] {N, N, 2}, tracker.changed().get("test.sl"));
+    assertTrue(tracker.changed().isEmpty());
+  }
+
+  @Test
+  public void trackersAreIndependent() {
+    ChangeTracker a = new ChangeTracker(coverage);
+    ChangeTracker b = new ChangeTracker(coverage);
+    a.changed();
+    b.changed();
+
+    execute(first);
+    assertArrayEquals(new long[] {1, N, N}, a.changed().get("test.sl"));
+    assertArrayEquals(new long[] {1, N, N}, b.changed().get("test.sl"));
+  }
+
+  @Test
+  public void reusedIdSeesAllLinesAgain() {
+    ChangeTracker a = new ChangeTracker(coverage);
+    a.changed();
+    a.close();
+
+    ChangeTracker b = new ChangeTracker(coverage);
+    assertEquals(1, b.changed().size());
+  }
+
+  @Test
+  public void testsRecordOnlyTheLinesTheyExecute() {
+    execute(third);
+    coverage.startTest("a");
+    execute(first);
+    coverage.startTest("b");
+    execute(third);
+    coverage.endTest();
+
+    LineSet a = coverage.getTestCoverage().getLines("a").get("test.sl");
+    assertTrue(a.contains(0));
+    assertFalse(a.contains(2));
+    LineSet b = coverage.getTestCoverage().getLines("b").get("test.sl");
+    assertFalse(b.contains(0));
+    assertTrue(b.contains(2));
+  }
+}
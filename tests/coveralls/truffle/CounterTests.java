@@ -0,0 +1,50 @@
+package coveralls.truffle;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+public class CounterTests {
+
+  @Test
+  public void concurrentIncrementsAreNotLost() throws InterruptedException {
+    Counter counter = new Counter(0);
+    int numThreads = 8;
+    int incsPerThread = 100_000;
+
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i += 1) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < incsPerThread; j += 1) {
+          counter.inc();
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals((long) numThreads * incsPerThread, counter.getCounter());
+  }
+
+  @Test
+  public void incrementsOfOwnerAndOtherThreadsAreSummed() throws InterruptedException {
+    Counter counter = new Counter(0);
+    for (int i = 0; i < 10; i += 1) {
+      counter.inc();
+    }
+
+    Thread other = new Thread(() -> {
+      for (int i = 0; i < 5; i += 1) {
+        counter.inc();
+      }
+    });
+    other.start();
+    other.join();
+
+    counter.inc();
+    assertEquals(16, counter.getCounter());
+  }
+}
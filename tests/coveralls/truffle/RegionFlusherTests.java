@@ -0,0 +1,57 @@
+package coveralls.truffle;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.oracle.truffle.api.source.Source;
+import com.oracle.truffle.api.source.SourceSection;
+
+import gcov.CounterRegion;
+import gcov.Gcov;
+
+
+public class RegionFlusherTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  @Test
+  public void flushedCountsCanBeReadFromTheRegion() throws IOException, InterruptedException {
+    Path file = Files.createTempFile("counters", ".region");
+    CounterRegion region = CounterRegion.create(file, 4096);
+    int id = region.addSource("test.sl", 2);
+
+    Coverage coverage = new Coverage();
+    Source s = Source.newBuilder("sl", "a\nb\n", "test.sl").build();
+    SourceCoverage source = coverage.getSourceCoverage(s);
+    SourceSection section = s.createSection(2);
+    source.addStatement(section);
+    Counter counter = source.getOrCreate(section,
+        line -> new MappedCounter(line, region, region.addStatement(id, line)));
+
+    RegionFlusher flusher = new RegionFlusher(coverage, Thread::new, 10);
+    for (int i = 0; i < 3; i += 1) {
+      counter.inc();
+      counter.source.markChanged();
+    }
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    long[] expected = {N, 3};
+    while (!Arrays.equals(expected, CounterRegion.read(file).get("test.sl"))
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertArrayEquals(expected, CounterRegion.read(file).get("test.sl"));
+
+    // stopping flushes all counters, also those not marked as changed
+    counter.inc();
+    flusher.stop();
+    assertArrayEquals(new long[] {N, 4}, CounterRegion.read(file).get("test.sl"));
+    Files.delete(file);
+  }
+}
@@ -0,0 +1,51 @@
+package coveralls.truffle;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+
+public class SamplingTests {
+
+  /**
+   * A loop with as many statements as the interval. With a fixed countdown,
+   * every sample would fall on the same statement.
+   */
+  @Test
+  public void loopPeriodDividingTheIntervalIsSampledEvenly() {
+    int interval = 4;
+    int iterations = 100_000;
+    SamplingNode.Countdown countdown =
+        new SamplingNode.Countdown(interval, new SplittableRandom(42));
+
+    SampledCounter[] body = new SampledCounter[interval];
+    for (int i = 0; i < body.length; i += 1) {
+      body[i] = new SampledCounter(i);
+      body[i].markExecuted();
+    }
+
+    for (int i = 0; i < iterations; i += 1) {
+      for (SampledCounter statement : body) {
+        if (countdown.tick()) {
+          statement.inc();
+        }
+      }
+    }
+
+    for (SampledCounter statement : body) {
+      long error = Math.abs(statement.getEstimate(interval) - iterations);
+      assertTrue("line " + statement.line + " is off by " + error,
+          error <= 2 * statement.getErrorBound(interval));
+    }
+  }
+
+  @Test
+  public void intervalOfOneSamplesEveryExecution() {
+    SamplingNode.Countdown countdown = new SamplingNode.Countdown(1);
+    for (int i = 0; i < 1000; i += 1) {
+      assertTrue(countdown.tick());
+    }
+  }
+}
@@ -1,22 +1,43 @@
 package coveralls.truffle;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.Source;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.oracle.truffle.api.source.SourceSection;
 import com.oracle.truffle.sl.SLLanguage;
 
+import gcov.BranchRecord;
+import gcov.CallEdge;
+import gcov.Collector;
+import gcov.CounterRegion;
+import gcov.DeltaLog;
+import gcov.FunctionRecord;
+import gcov.Gcov;
+import gcov.LineSet;
+import gcov.MergeMode;
+import gcov.TestCoverage;
+
 
 public class Tests {
 
@@ -24,6 +45,7 @@ public class Tests {
   private Coverage covInst;
 
   private static final String TEST_FILE = "test.sl";
+  private static final long   N         = Gcov.NO_CODE;
 
   @Test
   public void checkCoverageMapForTestSLFile() throws IOException {
@@ -33,20 +55,326 @@ public class Tests {
 
     context.eval(testSl);
 
-    Map<String, Long[]> result = covInst.getCoverageMap(new HashMap<>());
+    Map<String, long[]> result = covInst.getCoverageMap(new HashMap<>());
 
     assertTrue(result.containsKey(TEST_FILE));
-    Long[] lines = result.get(TEST_FILE);
+    long[] lines = result.get(TEST_FILE);
+
+    assertArrayEquals(new long[] {
+        N, 0, 0, 0, N, N,
+        N, N, 20, N, 120, 100, N, N, 20, N, N,
+        N, 1, N, 21, 20, 20, 20, 0, N, N, N}, lines);
+  }
+
+  @Test
+  public void checkHitOnlyCoverageMapForTestSLFile() throws IOException {
+    initSL(CountingMode.HIT, 1);
+
+    assertArrayEquals(new long[] {
+        N, 0, 0, 0, N, N,
+        N, N, 1, N, 1, 1, N, N, 1, N, N,
+        N, 1, N, 1, 1, 1, 1, 0, N, N, N}, evalTestSl());
+  }
+
+  @Test
+  public void checkSamplingWithIntervalOneIsExact() throws IOException {
+    initSL(CountingMode.SAMPLE, 1);
+
+    assertArrayEquals(new long[] {
+        N, 0, 0, 0, N, N,
+        N, N, 20, N, 120, 100, N, N, 20, N, N,
+        N, 1, N, 21, 20, 20, 20, 0, N, N, N}, evalTestSl());
+  }
+
+  @Test
+  public void checkSamplingNeverReportsExecutedLinesAsZero() throws IOException {
+    initSL(CountingMode.SAMPLE, 1000);
+
+    long[] lines = evalTestSl();
+    long[] bounds = covInst.getSamplingErrorBounds().get(TEST_FILE);
+
+    int[] executed = {9, 11, 12, 15, 19, 21, 22, 23, 24};
+    for (int line : executed) {
+      assertTrue("line " + line, lines[line - 1] > 0);
+      assertTrue("line " + line, bounds[line - 1] > 0);
+    }
+
+    int[] notExecuted = {2, 3, 4, 25};
+    for (int line : notExecuted) {
+      assertEquals("line " + line, 0L, lines[line - 1]);
+    }
+  }
+
+  @Test
+  public void checkCodeNotExecutedForTestSLFile() throws IOException {
+    evalTestSl();
+
+    Set<Integer> notExecuted = new TreeSet<>();
+    for (SourceSection section : covInst.getCodeNotExecuted()) {
+      notExecuted.add(section.getStartLine());
+    }
+
+    assertEquals(new TreeSet<>(Arrays.asList(2, 3, 4, 25)), notExecuted);
+  }
+
+  @Test
+  public void checkNewlyCoveredLinesAreReportedOnce() throws IOException {
+    assertEquals(0, covInst.getVersion());
+
+    long[] lines = evalTestSl();
+    CoverageUpdate update = covInst.getNewlyCoveredLines(0);
+    assertEquals(9, update.getVersion());
+    assertArrayEquals(new int[] {9, 11, 12, 15, 19, 21, 22, 23, 24},
+        update.getLines().get(TEST_FILE));
+    assertArrayEquals(lines, covInst.getLines(TEST_FILE));
+
+    evalTestSl();
+    assertTrue(covInst.getNewlyCoveredLines(update.getVersion()).isEmpty());
+    assertEquals(9, covInst.getCoveredLines().getVersion());
+  }
+
+  @Test
+  public void checkSnapshotsAreWrittenToDeltaLog() throws IOException, InterruptedException {
+    initSL(CountingMode.COUNT, 1, 10);
+    Path dir = Files.createTempDirectory("coverage");
+    Path file = dir.resolve("test.gcov");
+    covInst.setOutputFile(file.toString());
+
+    evalTestSl();
+    long snapshots = covInst.getSnapshotCount();
+    while (covInst.getSnapshotCount() < snapshots + 2) {
+      Thread.sleep(10);
+    }
+
+    long[] logged = DeltaLog.load(DeltaLog.forFile(file)).get(TEST_FILE);
+    assertArrayEquals(covInst.getCoverageMap(new HashMap<>()).get(TEST_FILE), logged);
+    assertTrue(covInst.getSnapshotTimeNanos() > 0);
+
+    context.close();
+    context = null;
+    assertFalse(Files.exists(DeltaLog.forFile(file)));
+    assertArrayEquals(logged, Gcov.load(file).get(TEST_FILE));
+  }
+
+  @Test
+  public void checkMappedCountersCanBeRecoveredWithoutDispose()
+      throws IOException, InterruptedException {
+    Path region = Files.createTempFile("coverage", ".region");
+    context.close();
+    context = Context.newBuilder(SLLanguage.ID).in(System.in).out(System.out)
+                     .option(Coverage.ID + ".MappedFile", region.toString())
+                     .option(Coverage.ID + ".MappedFileFlushInterval", "1")
+                     .allowAllAccess(true).build();
+    covInst = Coverage.find(context.getEngine());
+
+    long[] lines = evalTestSl();
+
+    // the counts reach the region with the next flush
+    while (!Arrays.equals(lines, CounterRegion.read(region).get(TEST_FILE))) {
+      Thread.sleep(10);
+    }
+    assertArrayEquals(new long[] {
+        N, 0, 0, 0, N, N,
+        N, N, 20, N, 120, 100, N, N, 20, N, N,
+        N, 1, N, 21, 20, 20, 20, 0, N, N, N}, lines);
+  }
+
+  @Test
+  public void checkCoverageIsSentToCollector() throws IOException {
+    Path dir = Files.createTempDirectory("coverage");
+    String address = "unix:" + dir.resolve("collector.sock");
+    Path out = dir.resolve("total.gcov");
+    Collector collector = new Collector(address, out, MergeMode.SUM);
+
+    long[] expected = null;
+    for (int i = 0; i < 2; i += 1) {
+      context.close();
+      context = Context.newBuilder(SLLanguage.ID).in(System.in).out(System.out)
+                       .option(Coverage.ID + ".Collector", address)
+                       .allowAllAccess(true).build();
+      covInst = Coverage.find(context.getEngine());
+      long[] lines = evalTestSl();
+      expected = expected == null ? lines : MergeMode.SUM.merge(expected, lines);
+    }
+    context.close();
+    context = null;
+    collector.close();
+
+    assertArrayEquals(expected, Gcov.load(out).get(TEST_FILE));
+  }
+
+  @Test
+  public void checkUnreachableCollectorFallsBackToOutputFile() throws IOException {
+    Path dir = Files.createTempDirectory("coverage");
+    Path file = dir.resolve("test.gcov");
+    context.close();
+    context = Context.newBuilder(SLLanguage.ID).in(System.in).out(System.out)
+                     .option(Coverage.ID + ".Collector", "unix:" + dir.resolve("none.sock"))
+                     .allowAllAccess(true).build();
+    covInst = Coverage.find(context.getEngine());
+    covInst.setOutputFile(file.toString());
 
-    assertArrayEquals(new Long[] {
-        null, 0L, 0L, 0L, null, null,
-        null, null, 20L, null, 120L, 100L, null, null, 20L, null, null,
-        null, 1L, null, 21L, 20L, 20L, 20L, 0L, null, null, null}, lines);
+    long[] lines = evalTestSl();
+    context.close();
+    context = null;
+
+    assertArrayEquals(lines, Gcov.load(file).get(TEST_FILE));
+  }
+
+  @Test
+  public void checkExcludedSourcesAreNotInstrumented() throws IOException {
+    initWithOption("Exclude", "**.sl");
+    assertNull(evalTestSl());
+    assertTrue(covInst.getCoverageMap().isEmpty());
+  }
+
+  @Test
+  public void checkIncludedSourcesAreInstrumented() throws IOException {
+    initWithOption("Include", "test.*");
+    assertNotNull(evalTestSl());
+  }
+
+  @Test
+  public void checkOtherMimeTypesAreNotInstrumented() throws IOException {
+    initWithOption("MimeTypes", "text/x-other");
+    assertNull(evalTestSl());
+  }
+
+  @Test
+  public void checkCollectionCanBeStartedAndStopped() throws IOException {
+    initWithOption("Enabled", "false");
+    assertFalse(covInst.isCollecting());
+    long[] none = evalTestSl();
+
+    covInst.start("window");
+    long[] once = evalTestSl();
+    covInst.stop();
+    assertArrayEquals(once, evalTestSl());
+    assertArrayEquals(once, covInst.getWindowCoverage("window").get(TEST_FILE));
+
+    covInst.start();
+    long[] twice = evalTestSl();
+    for (int i = 0; i < none.length; i += 1) {
+      assertTrue(none[i] == N || none[i] == 0);
+      assertEquals(once[i] == N ? N : 2 * once[i], twice[i]);
+    }
+  }
+
+  @Test
+  public void checkFunctionGranularityCountsCalls() throws IOException {
+    initWithOption("Granularity", "FUNCTION");
+    long[] lines = evalTestSl();
+    for (long l : lines) {
+      assertEquals(N, l);
+    }
+
+    Map<String, Long> calls = new HashMap<>();
+    for (FunctionRecord f : covInst.getFunctionCoverage().get(TEST_FILE)) {
+      calls.put(f.name, f.count);
+    }
+    assertEquals(Long.valueOf(0), calls.get("uncalled"));
+    assertEquals(Long.valueOf(20), calls.get("called"));
+    assertEquals(Long.valueOf(1), calls.get("main"));
+  }
+
+  @Test
+  public void checkBranchOutcomesAreCounted() throws IOException {
+    initWithOption("Branches", "true");
+    evalTestSl();
+
+    Map<Integer, long[]> outcomes = new HashMap<>();
+    for (BranchRecord b : covInst.getBranchCoverage().get(TEST_FILE)) {
+      outcomes.computeIfAbsent(b.line, l -> new long[2])[b.branch] += b.count;
+    }
+
+    assertEquals(new TreeSet<>(Arrays.asList(3, 11, 21, 24)), new TreeSet<>(outcomes.keySet()));
+    // the condition of uncalled() never runs
+    assertArrayEquals(new long[] {0, 0}, outcomes.get(3));
+    assertArrayEquals(new long[] {100, 20}, outcomes.get(11));
+    assertArrayEquals(new long[] {20, 1}, outcomes.get(21));
+    assertArrayEquals(new long[] {0, 20}, outcomes.get(24));
+  }
+
+  @Test
+  public void checkCallEdgesAreCounted() throws IOException {
+    initWithOption("CallEdges", "true");
+    evalTestSl();
+
+    List<CallEdge> edges = covInst.getCallEdges();
+    assertEquals(1, edges.size());
+    CallEdge e = edges.get(0);
+    assertEquals("main", e.caller);
+    assertEquals("called", e.callee);
+    assertEquals(TEST_FILE, e.calleePath);
+    assertEquals(8, e.calleeLine);
+    assertEquals(20, e.count);
+  }
+
+  @Test
+  public void checkLinesAreRecordedPerTest() throws IOException {
+    Path file = Files.createTempDirectory("coverage").resolve("tests" + TestCoverage.EXTENSION);
+    initWithOption("TestCoverageFile", file.toString());
+
+    covInst.startTest("first");
+    long[] lines = evalTestSl();
+    covInst.startTest("second");
+    evalTestSl();
+    covInst.startTest("idle");
+    covInst.endTest();
+
+    TestCoverage tests = covInst.getTestCoverage();
+    assertEquals(new TreeSet<>(Arrays.asList("first", "idle", "second")), tests.getTests());
+    LineSet first = tests.getLines("first").get(TEST_FILE);
+    assertEquals(first, tests.getLines("second").get(TEST_FILE));
+    assertNull(tests.getLines("idle").get(TEST_FILE));
+    for (int i = 0; i < lines.length; i += 1) {
+      assertEquals(lines[i] > 0, first.contains(i));
+    }
+
+    context.close();
+    context = null;
+    Map<String, LineSet> changes = new HashMap<>();
+    changes.put(TEST_FILE, first);
+    assertEquals(new TreeSet<>(Arrays.asList("first", "second")),
+        TestCoverage.load(file).selectTests(changes));
+  }
+
+  private void initWithOption(final String option, final String value) {
+    context.close();
+    context = Context.newBuilder(SLLanguage.ID).in(System.in).out(System.out)
+                     .option(Coverage.ID + "." + option, value)
+                     .allowAllAccess(true).build();
+    covInst = Coverage.find(context.getEngine());
+  }
+
+  private long[] evalTestSl() throws IOException {
+    InputStream testSlFile = getClass().getResourceAsStream("test.sl");
+    Source testSl =
+        Source.newBuilder("sl", new InputStreamReader(testSlFile), TEST_FILE).build();
+
+    context.eval(testSl);
+
+    return covInst.getCoverageMap(new HashMap<>()).get(TEST_FILE);
   }
 
   @Before
   public void initSL() {
+    initSL(CountingMode.COUNT, 1);
+  }
+
+  private void initSL(final CountingMode mode, final int sampleInterval) {
+    initSL(mode, sampleInterval, 0);
+  }
+
+  private void initSL(final CountingMode mode, final int sampleInterval,
+      final long snapshotInterval) {
+    if (context != null) {
+      context.close();
+    }
     context = Context.newBuilder(SLLanguage.ID).in(System.in).out(System.out)
+                     .option(Coverage.ID + ".Mode", mode.name())
+                     .option(Coverage.ID + ".SampleInterval", Integer.toString(sampleInterval))
+                     .option(Coverage.ID + ".SnapshotInterval", Long.toString(snapshotInterval))
                      .allowAllAccess(true).build();
     assertTrue("SimpleLanguage needs to be on the classpath for tests",
         context.getEngine().getLanguages().containsKey(SLLanguage.ID));
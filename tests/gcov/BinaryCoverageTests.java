@@ -0,0 +1,105 @@
+package gcov;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class BinaryCoverageTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  @Test
+  public void roundTripKeepsCounts() throws IOException {
+    Map<String, long[]> coverage = new HashMap<>();
+    coverage.put("a.sl", new long[] {N, 0, 1, 300, N, Long.MAX_VALUE, N});
+    coverage.put("dir/b.sl", new long[] {5});
+    coverage.put("empty.sl", new long[0]);
+
+    Path file = Files.createTempFile("coverage", BinaryCoverage.EXTENSION);
+    BinaryCoverage.write(coverage, file, false);
+    Map<String, long[]> loaded = CoverageFormat.forPath(file).load(file);
+    Files.delete(file);
+
+    assertEquals(coverage.keySet(), loaded.keySet());
+    for (String path : coverage.keySet()) {
+      assertArrayEquals(coverage.get(path), loaded.get(path));
+    }
+  }
+
+  @Test
+  public void hitOnlyEncodingKeepsExecutedLines() throws IOException {
+    long[] lines = Gcov.newLines(1000);
+    for (int i = 0; i < lines.length; i += 7) {
+      lines[i] = i % 2;
+    }
+    Map<String, long[]> coverage = new HashMap<>();
+    coverage.put("a.sl", lines);
+
+    Path file = Files.createTempFile("coverage", BinaryCoverage.EXTENSION);
+    BinaryCoverage.write(coverage, file, true);
+    long[] loaded = BinaryCoverage.load(file).get("a.sl");
+    Files.delete(file);
+
+    assertArrayEquals(lines, loaded);
+  }
+
+  @Test
+  public void binaryIsSmallerThanGcovText() throws IOException {
+    Map<String, long[]> coverage;
+    try (InputStream in = getClass().getResourceAsStream("test.gcov")) {
+      coverage = Gcov.load(in);
+    }
+
+    Path file = Files.createTempFile("coverage", BinaryCoverage.EXTENSION);
+    BinaryCoverage.write(coverage, file, false);
+    long size = Files.size(file);
+    Files.delete(file);
+
+    assertTrue(size < Gcov.toString(coverage).length() / 2);
+  }
+
+  @Test(expected = IOException.class)
+  public void corruptedDataIsDetected() throws IOException {
+    Map<String, long[]> coverage = new HashMap<>();
+    coverage.put("a.sl", new long[] {N, 3, 4});
+
+    Path file = Files.createTempFile("coverage", BinaryCoverage.EXTENSION);
+    try {
+      BinaryCoverage.write(coverage, file, false);
+      byte[] bytes = Files.readAllBytes(file);
+      bytes[bytes.length - 1] ^= 1;
+      Files.write(file, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+      BinaryCoverage.load(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void convertsToGcovText() throws IOException {
+    Map<String, long[]> coverage;
+    try (InputStream in = getClass().getResourceAsStream("test.gcov")) {
+      coverage = Gcov.load(in);
+    }
+
+    Path binary = Files.createTempFile("coverage", BinaryCoverage.EXTENSION);
+    Path text = Files.createTempFile("coverage", ".gcov");
+    BinaryCoverage.write(coverage, binary, false);
+    BinaryCoverage.main(new String[] {"to-gcov", binary.toString(), text.toString()});
+
+    assertArrayEquals(coverage.get("test.sl"), Gcov.load(text).get("test.sl"));
+    Files.delete(binary);
+    Files.delete(text);
+  }
+}
@@ -0,0 +1,41 @@
+package gcov;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class CallEdgesTests {
+
+  private static CallEdge edge(final String caller, final String callee, final long count) {
+    return new CallEdge("a.sl", 1, caller, "b.sl", 10, callee, count);
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    Path file = CallEdges.forCoverageFile(
+        Files.createTempDirectory("calls").resolve("coverage.gcov"));
+    assertEquals("coverage.gcov" + CallEdges.EXTENSION, file.getFileName().toString());
+
+    List<CallEdge> edges = Arrays.asList(edge("main", "f", 3), edge("f", "g", 1));
+    CallEdges.write(edges, file);
+    assertEquals(edges, CallEdges.load(file));
+  }
+
+  @Test
+  public void updateMergesSameEdges() throws Exception {
+    Path file = Files.createTempDirectory("calls").resolve("coverage.gcov.calls");
+    CallEdges.update(Arrays.asList(edge("main", "f", 3)), file, MergeMode.SUM);
+    CallEdges.update(Arrays.asList(edge("main", "f", 2), edge("f", "g", 1)),
+        file, MergeMode.SUM);
+
+    assertEquals(new HashSet<>(Arrays.asList(edge("main", "f", 5), edge("f", "g", 1))),
+        new HashSet<>(CallEdges.load(file)));
+  }
+}
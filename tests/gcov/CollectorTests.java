@@ -0,0 +1,100 @@
+package gcov;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class CollectorTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  private static Map<String, long[]> lines(final String file, final long... counts) {
+    Map<String, long[]> map = new HashMap<>();
+    map.put(file, counts);
+    return map;
+  }
+
+  @Test
+  public void sumsTheCoverageOfAllClients() throws IOException {
+    Path dir = Files.createTempDirectory("collector");
+    Path socket = dir.resolve("coverage.sock");
+    Path out = dir.resolve("coverage.gcov");
+    String address = "unix:" + socket;
+
+    Collector collector = new Collector(address, out, MergeMode.SUM);
+    try (CollectorClient a = new CollectorClient(address);
+        CollectorClient b = new CollectorClient(address)) {
+      a.send(lines("x.sl", N, 1, 0));
+      // later pushes contain the current counts of the changed lines
+      a.send(lines("x.sl", N, 3, N));
+      a.send(lines("y.sl", 7));
+      b.send(lines("x.sl", N, 2, 1));
+    }
+    collector.close();
+
+    Map<String, long[]> result = Gcov.load(out);
+    assertArrayEquals(new long[] {N, 5, 1}, result.get("x.sl"));
+    assertArrayEquals(new long[] {7}, result.get("y.sl"));
+    assertFalse(Files.exists(socket));
+  }
+
+  @Test
+  public void repeatedMessagesDoNoHarm() throws IOException {
+    Path out = Files.createTempDirectory("collector").resolve("coverage.covb");
+
+    Collector collector = new Collector("0", out, MergeMode.SUM);
+    int port = ((InetSocketAddress) collector.getAddress()).getPort();
+    try (CollectorClient a = new CollectorClient(Integer.toString(port))) {
+      a.send(lines("x.sl", 4, N, 0));
+      a.send(lines("x.sl", 4, N, 0));
+    }
+    collector.close();
+
+    assertArrayEquals(new long[] {4, N, 0}, BinaryCoverage.load(out).get("x.sl"));
+  }
+
+  @Test
+  public void functionAndBranchRecordsAreMerged() throws IOException {
+    Path out = Files.createTempDirectory("collector").resolve("coverage.gcov");
+
+    Collector collector = new Collector("0", out, MergeMode.SUM);
+    String port = Integer.toString(((InetSocketAddress) collector.getAddress()).getPort());
+    try (CollectorClient a = new CollectorClient(port);
+        CollectorClient b = new CollectorClient(port)) {
+      a.send(lines("x.sl", 2, 2));
+      a.sendRecords(
+          Collections.singletonMap("x.sl", Arrays.asList(new FunctionRecord(1, 1, "main"))),
+          Collections.singletonMap("x.sl", Arrays.asList(new BranchRecord(2, 0, 0, 1))));
+      // records replace those sent before on the same connection
+      a.sendRecords(
+          Collections.singletonMap("x.sl", Arrays.asList(new FunctionRecord(1, 2, "main"))),
+          Collections.singletonMap("x.sl", Arrays.asList(new BranchRecord(2, 0, 0, 2))));
+      // a file without line counts
+      b.sendRecords(
+          Collections.singletonMap("y.sl", Arrays.asList(new FunctionRecord(4, 3, "other"))),
+          Collections.singletonMap("x.sl", Arrays.asList(new BranchRecord(2, 0, 0, 5),
+              new BranchRecord(2, 0, 1, 1))));
+    }
+    collector.close();
+
+    Map<String, List<FunctionRecord>> functions = Gcov.loadFunctions(out);
+    assertEquals(Arrays.asList(new FunctionRecord(1, 2, "main")), functions.get("x.sl"));
+    assertEquals(Arrays.asList(new FunctionRecord(4, 3, "other")), functions.get("y.sl"));
+    assertEquals(Arrays.asList(new BranchRecord(2, 0, 0, 7), new BranchRecord(2, 0, 1, 1)),
+        Gcov.loadBranches(out).get("x.sl"));
+    assertArrayEquals(new long[] {2, 2}, Gcov.load(out).get("x.sl"));
+  }
+}
@@ -0,0 +1,52 @@
+package gcov;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class CounterRegionTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  @Test
+  public void countsCanBeReadWithoutClosingTheRegion() throws IOException {
+    Path file = Files.createTempFile("counters", ".region");
+    CounterRegion region = CounterRegion.create(file, 4096);
+
+    int a = region.addSource("a.sl", 4);
+    int b = region.addSource("b.sl", 1);
+    int a1 = region.addStatement(a, 1);
+    int a1b = region.addStatement(a, 1);
+    region.addStatement(a, 3);
+    int b0 = region.addStatement(b, 0);
+
+    region.set(a1, 7);
+    region.set(a1b, 40_000);
+    region.set(b0, 1);
+    region.set(b0, 2);
+
+    // lines with several statements report the maximum
+    Map<String, long[]> result = CounterRegion.read(file);
+    assertArrayEquals(new long[] {N, 40_000, N, 0}, result.get("a.sl"));
+    assertArrayEquals(new long[] {2}, result.get("b.sl"));
+    Files.delete(file);
+  }
+
+  @Test
+  public void fullRegionRejectsNewRecords() throws IOException {
+    Path file = Files.createTempFile("counters", ".region");
+    CounterRegion region = CounterRegion.create(file, 64);
+
+    int a = region.addSource("a.sl", 1);
+    assertEquals(-1, region.addStatement(a, 0));
+    assertEquals(-1, region.addSource("b.sl", 1));
+    Files.delete(file);
+  }
+}
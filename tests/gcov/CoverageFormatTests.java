@@ -0,0 +1,112 @@
+package gcov;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+
+public class CoverageFormatTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  @Test
+  public void concurrentUpdatesLoseNoData() throws Exception {
+    Path file = Files.createTempDirectory("update").resolve("coverage.covb");
+    int writers = 32;
+
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    List<Future<?>> results = new ArrayList<>();
+    for (int i = 0; i < writers; i += 1) {
+      int id = i;
+      results.add(pool.submit(() -> {
+        Map<String, long[]> data = new HashMap<>();
+        data.put("shared.sl", new long[] {N, 1, 0});
+        data.put("own" + id + ".sl", new long[] {id});
+        CoverageFormat.BINARY.update(data, file, MergeMode.SUM, false);
+        return null;
+      }));
+    }
+    for (Future<?> f : results) {
+      f.get();
+    }
+    pool.shutdown();
+
+    Map<String, long[]> result = CoverageFormat.BINARY.load(file);
+    assertArrayEquals(new long[] {N, writers, 0}, result.get("shared.sl"));
+    for (int i = 0; i < writers; i += 1) {
+      assertArrayEquals(new long[] {i}, result.get("own" + i + ".sl"));
+    }
+  }
+
+  /**
+   * The second process of {@link #concurrentProcessesLoseNoData()}: signals
+   * that it is ready, and then adds 1 to a line {@code args[1]} times.
+   */
+  public static void main(final String[] args) throws IOException {
+    System.out.println("ready");
+    System.out.flush();
+    addOnes(Paths.get(args[0]), Integer.parseInt(args[1]));
+  }
+
+  private static void addOnes(final Path file, final int updates) throws IOException {
+    for (int i = 0; i < updates; i += 1) {
+      Map<String, long[]> data = new HashMap<>();
+      data.put("shared.sl", new long[] {N, 1});
+      CoverageFormat.GCOV.update(data, file, MergeMode.SUM, false);
+    }
+  }
+
+  @Test
+  public void concurrentProcessesLoseNoData() throws Exception {
+    Path file = Files.createTempDirectory("update").resolve("coverage.gcov");
+    int updates = 100;
+
+    Process other = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", System.getProperty("java.class.path"),
+        CoverageFormatTests.class.getName(), file.toString(), Integer.toString(updates))
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    try (BufferedReader out = new BufferedReader(
+        new InputStreamReader(other.getInputStream(), StandardCharsets.UTF_8))) {
+      assertEquals("ready", out.readLine());
+      addOnes(file, updates);
+    }
+    assertEquals(0, other.waitFor());
+
+    assertArrayEquals(new long[] {N, 2 * updates}, Gcov.load(file).get("shared.sl"));
+    assertFalse(Files.exists(file.resolveSibling("coverage.gcov" + OutputLock.EXTENSION)));
+  }
+
+  @Test
+  public void updateFoldsDeltaLog() throws IOException {
+    Path file = Files.createTempDirectory("update").resolve("coverage.gcov");
+
+    Map<String, long[]> crashed = new HashMap<>();
+    crashed.put("a.sl", new long[] {N, 5});
+    DeltaLog.append(crashed, DeltaLog.forFile(file));
+
+    Map<String, long[]> data = new HashMap<>();
+    data.put("a.sl", new long[] {N, 3, 1});
+    CoverageFormat.GCOV.update(data, file, MergeMode.MAX, false);
+
+    assertArrayEquals(new long[] {N, 5, 1}, Gcov.load(file).get("a.sl"));
+    assertFalse(Files.exists(DeltaLog.forFile(file)));
+  }
+}
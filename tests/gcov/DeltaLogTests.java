@@ -0,0 +1,114 @@
+package gcov;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class DeltaLogTests {
+
+  private static final long N = Gcov.NO_CODE;
+
+  @Test
+  public void compactFoldsSnapshotsIntoFile() throws IOException {
+    Path dir = Files.createTempDirectory("delta");
+    Path file = dir.resolve("coverage.gcov");
+    Path log = DeltaLog.forFile(file);
+
+    Map<String, long[]> existing = new HashMap<>();
+    existing.put("a.sl", new long[] {N, 10, 0});
+    existing.put("b.sl", new long[] {3});
+    Gcov.write(existing, file);
+
+    Map<String, long[]> first = new HashMap<>();
+    first.put("a.sl", new long[] {N, 1, 0, 0});
+    DeltaLog.append(first, log);
+
+    Map<String, long[]> second = new HashMap<>();
+    second.put("a.sl", new long[] {N, N, 2, N});
+    DeltaLog.append(second, log);
+
+    // a snapshot that was cut short by a crash
+    Files.write(log, "file:a.sl\nlcount:4,9".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    DeltaLog.compact(file);
+
+    Map<String, long[]> result = Gcov.load(file);
+    assertArrayEquals(new long[] {N, 10, 2, 0}, result.get("a.sl"));
+    assertArrayEquals(new long[] {3}, result.get("b.sl"));
+    assertFalse(Files.exists(log));
+  }
+
+  @Test
+  public void appendCompactsLogBeyondLimit() throws IOException {
+    Path dir = Files.createTempDirectory("delta");
+    Path file = dir.resolve("coverage.gcov");
+    Path log = DeltaLog.forFile(file);
+
+    Map<String, long[]> snapshot = new HashMap<>();
+    long count = 0;
+    do {
+      count += 1;
+      snapshot.put("a.sl", new long[] {N, count});
+      DeltaLog.append(snapshot, file, 100);
+    } while (Files.exists(log));
+
+    assertTrue(count > 1);
+    assertArrayEquals(new long[] {N, count}, Gcov.load(file).get("a.sl"));
+  }
+
+  @Test
+  public void compactKeepsHitOnlyBinaryFile() throws IOException {
+    Path file = Files.createTempDirectory("delta").resolve("coverage" + BinaryCoverage.EXTENSION);
+    Map<String, long[]> existing = new HashMap<>();
+    existing.put("a.sl", new long[] {1, 0});
+    BinaryCoverage.write(existing, file, true);
+
+    Map<String, long[]> delta = new HashMap<>();
+    delta.put("a.sl", new long[] {N, 1});
+    DeltaLog.append(delta, DeltaLog.forFile(file));
+    DeltaLog.compact(file);
+
+    assertTrue(BinaryCoverage.isHitOnly(file));
+    assertArrayEquals(new long[] {1, 1}, BinaryCoverage.load(file).get("a.sl"));
+  }
+
+  @Test
+  public void appendWaitsForTheOutputLock() throws Exception {
+    Path file = Files.createTempDirectory("delta").resolve("coverage.gcov");
+    Map<String, long[]> snapshot = new HashMap<>();
+    snapshot.put("a.sl", new long[] {1});
+
+    Thread appender;
+    OutputLock lock = OutputLock.acquire(file);
+    try {
+      appender = new Thread(() -> {
+        try {
+          DeltaLog.append(snapshot, file, Long.MAX_VALUE);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      appender.start();
+      appender.join(200);
+      assertFalse(Files.exists(DeltaLog.forFile(file)));
+    } finally {
+      lock.close();
+    }
+
+    appender.join();
+    assertArrayEquals(new long[] {1}, DeltaLog.load(DeltaLog.forFile(file)).get("a.sl"));
+  }
+}
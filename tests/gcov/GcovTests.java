@@ -1,27 +1,231 @@
 package gcov;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 
 public class GcovTests {
 
+  private static final long N = Gcov.NO_CODE;
+
   @Test
   public void loadGcovFile() throws IOException {
     InputStream gcovFile = getClass().getResourceAsStream("test.gcov");
-    Map<String, Long[]> lineCoverage = Gcov.load(gcovFile);
+    Map<String, long[]> lineCoverage = Gcov.load(gcovFile);
 
-    Long[] lines = lineCoverage.get("test.sl");
+    long[] lines = lineCoverage.get("test.sl");
     assertNotNull(lines);
-    assertArrayEquals(new Long[] {
-        null, 0L, 0L, 0L, null, null,
-        null, null, 20L, null, 120L, 100L, null, null, 20L, null, null,
-        null, 1L, null, 21L, 20L, 20L, 20L, 0L}, lines);
+    assertArrayEquals(new long[] {
+        N, 0, 0, 0, N, N,
+        N, N, 20, N, 120, 100, N, N, 20, N, N,
+        N, 1, N, 21, 20, 20, 20, 0}, lines);
+  }
+
+  @Test
+  public void toStringAndLoadRoundTrip() throws IOException {
+    Map<String, long[]> coverage = new HashMap<>();
+    coverage.put("a.sl", new long[] {N, 0, 3_000_000_000L, N, 1});
+
+    String gcov = Gcov.toString(coverage);
+    Map<String, long[]> loaded = Gcov.load(
+        new ByteArrayInputStream(gcov.getBytes(StandardCharsets.UTF_8)));
+
+    assertArrayEquals(coverage.get("a.sl"), loaded.get("a.sl"));
+  }
+
+  @Test
+  public void writeReplacesFileAtomically() throws IOException {
+    Path dir = Files.createTempDirectory("gcov");
+    Path file = dir.resolve("coverage.gcov");
+    Files.write(file, "stale".getBytes(StandardCharsets.UTF_8));
+
+    Map<String, long[]> coverage = new HashMap<>();
+    long[] lines = Gcov.newLines(100_000);
+    for (int i = 0; i < lines.length; i += 3) {
+      lines[i] = i;
+    }
+    coverage.put("big.sl", lines);
+    coverage.put("small.sl", new long[] {N, 7});
+
+    Gcov.write(coverage, file);
+
+    try (InputStream in = Files.newInputStream(file)) {
+      Map<String, long[]> loaded = Gcov.load(in);
+      assertArrayEquals(lines, loaded.get("big.sl"));
+      assertArrayEquals(new long[] {N, 7}, loaded.get("small.sl"));
+    }
+    assertEquals(Gcov.toString(coverage),
+        new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void writeKeepsPermissionsOfReplacedFile() throws IOException {
+    Path dir = Files.createTempDirectory("gcov");
+    Assume.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+    Path file = dir.resolve("coverage.gcov");
+    Files.write(file, "stale".getBytes(StandardCharsets.UTF_8));
+    Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    Files.setPosixFilePermissions(file, permissions);
+
+    Gcov.write(Collections.singletonMap("a.sl", new long[] {N, 1}), file);
+
+    assertEquals(permissions, Files.getPosixFilePermissions(file));
+  }
+
+  @Test
+  public void writeCreatesFileWithDefaultPermissions() throws IOException {
+    Path dir = Files.createTempDirectory("gcov");
+    Assume.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+    Path plain = Files.createFile(dir.resolve("plain"));
+    Path file = dir.resolve("coverage.gcov");
+
+    Gcov.write(Collections.singletonMap("a.sl", new long[] {N, 1}), file);
+
+    assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(file));
+  }
+
+  @Test(expected = IOException.class)
+  public void unknownRecordsFailInStrictMode() throws IOException {
+    Gcov.load(bytes("file:a.sl\nunknown:1,2\nlcount:1,5\n"), false, false);
+  }
+
+  @Test
+  public void unknownRecordsAreSkippedInLenientMode() throws IOException {
+    Map<String, long[]> result = Gcov.load(
+        bytes("version:1\nfile:a.sl\r\nunknown:1,2\r\nlcount:2,5,0\r\n"),
+        true, false);
+
+    assertArrayEquals(new long[] {N, 5}, result.get("a.sl"));
+  }
+
+  @Test
+  public void largestCountIsParsed() throws IOException {
+    Map<String, long[]> result = Gcov.load(
+        bytes("file:a.sl\nlcount:1," + Long.MAX_VALUE + "\n"), false, false);
+
+    assertArrayEquals(new long[] {Long.MAX_VALUE}, result.get("a.sl"));
+  }
+
+  @Test(expected = IOException.class)
+  public void countsBeyondLongRangeFail() throws IOException {
+    Gcov.load(bytes("file:a.sl\nlcount:1,9223372036854775808\n"), true, false);
+  }
+
+  @Test
+  public void parallelLoadMatchesSequentialLoad() throws IOException {
+    StringBuilder gcov = new StringBuilder();
+    for (int f = 0; f < 50; f += 1) {
+      gcov.append("file:f").append(f).append(".sl\n");
+      for (int l = 1; l < 200; l += 2) {
+        gcov.append("lcount:").append(l).append(',').append(f * l).append('\n');
+      }
+    }
+    gcov.append("file:f7.sl\nlcount:3,42\n");
+
+    Map<String, long[]> sequential = Gcov.load(bytes(gcov.toString()), false, false);
+    Map<String, long[]> parallel = Gcov.load(bytes(gcov.toString()), false, true);
+
+    assertEquals(sequential.keySet(), parallel.keySet());
+    for (String file : sequential.keySet()) {
+      assertArrayEquals(sequential.get(file), parallel.get(file));
+    }
+    assertArrayEquals(new long[] {N, N, 42}, parallel.get("f7.sl"));
+  }
+
+  @Test
+  public void loadMemoryMappedFile() throws IOException {
+    Path file = Files.createTempFile("coverage", ".gcov");
+    try (InputStream in = getClass().getResourceAsStream("test.gcov")) {
+      Files.write(file, in.readAllBytes());
+    }
+
+    Map<String, long[]> lineCoverage = Gcov.load(file);
+    try (InputStream in = getClass().getResourceAsStream("test.gcov")) {
+      assertArrayEquals(Gcov.load(in).get("test.sl"), lineCoverage.get("test.sl"));
+    }
+    Files.delete(file);
+  }
+
+  @Test
+  public void functionRecordsRoundTrip() throws IOException {
+    Path file = Files.createTempFile("functions", ".gcov");
+    Map<String, long[]> lines = new HashMap<>();
+    lines.put("a.sl", new long[] {N, 3});
+    Map<String, List<FunctionRecord>> functions = new HashMap<>();
+    functions.put("a.sl", Arrays.asList(
+        new FunctionRecord(1, 3, "main"), new FunctionRecord(5, 0, "a, b")));
+    functions.put("b.sl", Arrays.asList(new FunctionRecord(2, 1, "f")));
+
+    Gcov.write(lines, functions, Collections.emptyMap(), file);
+
+    Map<String, long[]> loaded = Gcov.load(file);
+    assertArrayEquals(new long[] {N, 3}, loaded.get("a.sl"));
+    assertArrayEquals(new long[0], loaded.get("b.sl"));
+    assertEquals(functions, Gcov.loadFunctions(file));
+    Files.delete(file);
+  }
+
+  @Test
+  public void branchRecordsRoundTrip() throws IOException {
+    Path file = Files.createTempFile("branches", ".gcov");
+    Map<String, long[]> lines = new HashMap<>();
+    lines.put("a.sl", new long[] {N, 3});
+    Map<String, List<BranchRecord>> branches = new HashMap<>();
+    branches.put("a.sl", Arrays.asList(
+        new BranchRecord(2, 5, 0, 3), new BranchRecord(2, 5, 1, 0)));
+
+    Gcov.write(lines, Collections.emptyMap(), branches, file);
+
+    assertArrayEquals(new long[] {N, 3}, Gcov.load(file).get("a.sl"));
+    assertEquals(branches, Gcov.loadBranches(file));
+
+    Map<String, List<BranchRecord>> merged = Gcov.loadBranches(file);
+    MergeMode.SUM.mergeBranches(merged, branches);
+    assertEquals(Arrays.asList(new BranchRecord(2, 5, 0, 6), new BranchRecord(2, 5, 1, 0)),
+        merged.get("a.sl"));
+    Files.delete(file);
+  }
+
+  @Test
+  public void functionRecordsAreMergedByLineAndName() {
+    Map<String, List<FunctionRecord>> into = new HashMap<>();
+    into.put("a.sl", Arrays.asList(new FunctionRecord(1, 3, "main")));
+    Map<String, List<FunctionRecord>> from = new HashMap<>();
+    from.put("a.sl", Arrays.asList(
+        new FunctionRecord(1, 2, "main"), new FunctionRecord(1, 1, "other")));
+
+    MergeMode.SUM.mergeFunctions(into, from);
+
+    assertEquals(Arrays.asList(new FunctionRecord(1, 5, "main"),
+        new FunctionRecord(1, 1, "other")), into.get("a.sl"));
+  }
+
+  private static ByteBuffer bytes(final String data) {
+    return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
   }
 }
@@ -0,0 +1,124 @@
+package gcov;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+
+public class TestCoverageTests {
+
+  private static LineSet lines(final int... lines) {
+    BitSet set = new BitSet();
+    for (int line : lines) {
+      set.set(line);
+    }
+    return LineSet.of(set);
+  }
+
+  private static Set<String> set(final String... tests) {
+    Set<String> result = new TreeSet<>();
+    for (String t : tests) {
+      result.add(t);
+    }
+    return result;
+  }
+
+  @Test
+  public void lineSetStoresRuns() {
+    LineSet set = lines(1, 2, 3, 7, 10, 11);
+    assertArrayEquals(new int[] {1, 4, 7, 8, 10, 12}, set.getRuns());
+    assertEquals(6, set.cardinality());
+    assertTrue(set.contains(3));
+    assertFalse(set.contains(4));
+    assertTrue(set.intersects(5, 8));
+    assertFalse(set.intersects(4, 7));
+    assertTrue(set.intersects(lines(0, 11)));
+    assertFalse(set.intersects(lines(0, 4, 5, 9)));
+    assertTrue(LineSet.EMPTY.isEmpty());
+  }
+
+  @Test
+  public void selectsTestsCoveringChangedLines() {
+    TestCoverage coverage = new TestCoverage();
+    Map<String, LineSet> a = new HashMap<>();
+    a.put("x.sl", lines(1, 2, 3));
+    coverage.add("a", a);
+    Map<String, LineSet> b = new HashMap<>();
+    b.put("x.sl", lines(10));
+    b.put("y.sl", lines(0));
+    coverage.add("b", b);
+
+    Map<String, LineSet> changes = new HashMap<>();
+    changes.put("x.sl", lines(2));
+    assertEquals(set("a"), coverage.selectTests(changes));
+
+    changes.put("y.sl", null);
+    assertEquals(set("a", "b"), coverage.selectTests(changes));
+
+    changes.clear();
+    changes.put("x.sl", lines(5));
+    assertEquals(set(), coverage.selectTests(changes));
+  }
+
+  @Test
+  public void roundTripAndUpdate() throws Exception {
+    Path file = Files.createTempDirectory("tests").resolve("coverage" + TestCoverage.EXTENSION);
+
+    TestCoverage first = new TestCoverage();
+    Map<String, LineSet> a = new HashMap<>();
+    a.put("x.sl", lines(0, 1, 2, 200, 201, 100000));
+    first.add("a", a);
+    TestCoverage.update(first, file);
+
+    TestCoverage second = new TestCoverage();
+    Map<String, LineSet> b = new HashMap<>();
+    b.put("x.sl", lines(5));
+    b.put("y.sl", lines(3));
+    second.add("b", b);
+    TestCoverage.update(second, file);
+
+    TestCoverage loaded = TestCoverage.load(file);
+    assertEquals(set("a", "b"), loaded.getTests());
+    assertEquals(a, loaded.getLines("a"));
+    assertEquals(b, loaded.getLines("b"));
+  }
+
+  @Test
+  public void parsesChanges() {
+    Map<String, BitSet> changes = new HashMap<>();
+    TestCoverage.parseChange("x.sl:3", changes);
+    TestCoverage.parseChange("x.sl:5-6", changes);
+    TestCoverage.parseChange("c:/y.sl", changes);
+
+    BitSet expected = new BitSet();
+    expected.set(2);
+    expected.set(4, 6);
+    assertEquals(expected, changes.get("x.sl"));
+    assertTrue(changes.containsKey("c:/y.sl"));
+    assertEquals(null, changes.get("c:/y.sl"));
+  }
+
+  @Test
+  public void invalidLineRangesAreRejected() {
+    for (String change : new String[] {"x.sl:0", "x.sl:5-3", "x.sl:99999999999"}) {
+      try {
+        TestCoverage.parseChange(change, new HashMap<>());
+        fail("Expected " + change + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage().contains(change));
+      }
+    }
+  }
+}